@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package multilock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import multilock.MultiLock.Mode;
+import multilock.MultiLock.Sync;
+import multilock.MultiLock.Sync.HoldCounter;
+import multilock.MultiLock.Sync.HoldTable;
+
+import static multilock.MultiLock.*;
+
+/**
+ * Finds threads deadlocked on MultiLocks, which jstack can't, as AQS
+ * waiters aren't monitors. Every period it samples which threads are
+ * blocked on which lock in which mode, and which of them hold a
+ * conflicting mode (intentions included) on a lock another is blocked
+ * on, and looks for cycles in that wait-for graph. A cycle still there,
+ * unchanged, a period later is reported with each lock's path from the
+ * root, and broken by interrupting one of its threads, if any is waiting
+ * interruptibly (the one holding the fewest locks).
+ *
+ * Needs -Dmultilock.detectDeadlocks=true, which makes threads note what
+ * they block for. Without it blocking costs nothing extra, and start()
+ * fails. Only waits for holders are seen, not for queued threads ahead.
+ */
+public class DeadlockDetector {
+
+    final long periodMillis;
+
+    // cycles found by the last scan, and those already acted on
+    private Set<String> suspects = new HashSet<String>();
+    private final Set<String> reported = new HashSet<String>();
+
+    public DeadlockDetector(long periodMillis) {
+        this.periodMillis = periodMillis;
+    }
+
+    public static boolean isEnabled() {
+        return Sync.TRACK_WAITS;
+    }
+
+    /**
+     * Scans every period on a new daemon thread, until that thread is
+     * interrupted.
+     */
+    public Thread start() {
+        if (!isEnabled()) {
+            throw new IllegalStateException("needs -Dmultilock.detectDeadlocks=true");
+        }
+        Thread t = new Thread("multilock-deadlock-detector") {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        Thread.sleep(periodMillis);
+                        scan();
+                    }
+                }
+                catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // a blocked thread, as sampled
+    static final class Waiter {
+        final HoldTable table;
+        final Sync on;
+        final long unit;
+        final boolean interruptibly;
+        final long waits;
+        final List<Waiter> waitsFor = new ArrayList<Waiter>();
+        int state; // 0 unvisited, 1 on the DFS path, 2 done
+
+        Waiter(HoldTable t, Sync on) {
+            table = t;
+            this.on = on;
+            unit = t.waitingFor;
+            interruptibly = t.interruptibly;
+            waits = t.waits;
+        }
+    }
+
+    /**
+     * One pass over the blocked threads. Returns the number of deadlocks
+     * reported.
+     */
+    public int scan() {
+        List<Waiter> ws = new ArrayList<Waiter>();
+        for (HoldTable t : Sync.tables) {
+            if (!t.thread.isAlive()) {
+                Sync.tables.remove(t);
+                continue;
+            }
+            Sync on = t.waitingOn;
+            if (on != null) {
+                ws.add(new Waiter(t, on));
+            }
+        }
+        // only blocked threads can be in a cycle, so they are the graph
+        for (Waiter w : ws) {
+            for (Waiter h : ws) {
+                if (h != w && blocks(h, w)) {
+                    w.waitsFor.add(h);
+                }
+            }
+        }
+        Set<String> seen = new HashSet<String>();
+        int found = 0;
+        List<Waiter> path = new ArrayList<Waiter>();
+        for (Waiter w : ws) {
+            if (w.state == 0) {
+                found += visit(w, path, seen);
+            }
+        }
+        suspects = seen;
+        return found;
+    }
+
+    // DFS from w, acting on the cycles it closes
+    private int visit(Waiter w, List<Waiter> path, Set<String> seen) {
+        int found = 0;
+        w.state = 1;
+        path.add(w);
+        for (Waiter h : w.waitsFor) {
+            if (h.state == 1) {
+                List<Waiter> cycle = path.subList(path.indexOf(h), path.size());
+                found += cycle(new ArrayList<Waiter>(cycle), seen);
+            }
+            else if (h.state == 0) {
+                found += visit(h, path, seen);
+            }
+        }
+        path.remove(path.size() - 1);
+        w.state = 2;
+        return found;
+    }
+
+    private int cycle(List<Waiter> cycle, Set<String> seen) {
+        // the same threads in the same waits as last time?
+        List<String> ids = new ArrayList<String>();
+        for (Waiter w : cycle) {
+            ids.add(w.table.thread.getId() + "." + w.waits);
+        }
+        Collections.sort(ids);
+        String key = ids.toString();
+        seen.add(key);
+        if (!suspects.contains(key) || !reported.add(key)) {
+            return 0;
+        }
+        StringBuilder sb = new StringBuilder("MultiLock deadlock:");
+        Waiter victim = null;
+        for (int i=0; i<cycle.size(); i++) {
+            Waiter w = cycle.get(i);
+            Waiter h = cycle.get((i + 1) % cycle.size());
+            sb.append("\n  \"").append(w.table.thread.getName())
+              .append("\" waits for ").append(name(w.unit))
+              .append(" on ").append(path(w.on.multiLock))
+              .append(", held in ").append(held(h, w.on))
+              .append(" by \"").append(h.table.thread.getName()).append('"');
+            if (w.interruptibly &&
+                (victim == null || w.table.size < victim.table.size)) {
+                victim = w;
+            }
+        }
+        if (victim != null) {
+            sb.append("\n  interrupting \"").append(victim.table.thread.getName()).append('"');
+        }
+        report(sb.toString());
+        if (victim != null) {
+            victim.table.thread.interrupt();
+        }
+        return 1;
+    }
+
+    // does h hold a mode on w's lock that w's mode conflicts with?
+    static boolean blocks(Waiter h, Waiter w) {
+        if (w.on.owner() == h.table.thread) {
+            return true;
+        }
+        HoldCounter rh = h.table.peek(w.on.id);
+        long held = (rh == null) ? 0 : rh.state;
+        if (held == 0) {
+            return false;
+        }
+        return w.unit == X_UNIT || (Sync.conflicts(w.unit) & held) != 0;
+    }
+
+    static String held(Waiter h, Sync on) {
+        StringBuilder sb = new StringBuilder();
+        if (on.owner() == h.table.thread) {
+            sb.append("X");
+        }
+        HoldCounter rh = h.table.peek(on.id);
+        long held = (rh == null) ? 0 : rh.state;
+        for (long unit : new long[] { S_UNIT, IX_UNIT, IS_UNIT }) {
+            if ((held & Sync.fieldOf(unit)) != 0) {
+                sb.append(sb.length() == 0 ? "" : "+").append(name(unit));
+            }
+        }
+        return sb.toString();
+    }
+
+    static String name(long unit) {
+        for (Mode m : Mode.values()) {
+            if (m.unit == unit) {
+                return m.name();
+            }
+        }
+        return Long.toHexString(unit);
+    }
+
+    // the lock's owner path as Sync ids, root first
+    static String path(MultiLock l) {
+        StringBuilder sb = new StringBuilder();
+        for (MultiLock a : l.ancestors) {
+            sb.append(a.sync.id).append('/');
+        }
+        return sb.append(l.sync.id).toString();
+    }
+
+    /**
+     * Where deadlocks go; stderr unless overridden.
+     */
+    protected void report(String deadlock) {
+        System.err.println(deadlock);
+    }
+
+}
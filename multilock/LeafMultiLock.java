@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package multilock;
+
+import static multilock.MultiLock.*;
+
+/**
+ * The part of a queue-less leaf lock that doesn't depend on how it blocks:
+ * a state word in the MultiLock layout whose top X bit says threads may
+ * be waiting, and the lock*, unlock* and tryLock* methods, which take the
+ * matching intention on the owner's path around the subclass's
+ * tryAcquire, acquire and release.
+ */
+abstract class LeafMultiLock {
+
+    // set while threads may be waiting on the lock
+    static final long WAITERS = 0x8000000000000000L;
+    static final long LEAF_X_FIELD = X_FIELD & ~WAITERS;
+
+    final MultiLock owner;
+
+    LeafMultiLock(MultiLock o) {
+        owner = o;
+    }
+
+    // is unit compatible with what is held in s?
+    static boolean compatible(long s, long unit) {
+        long c = s & ~WAITERS;
+        if (unit == X_UNIT) {
+            return c == 0;
+        }
+        return (c & LEAF_X_FIELD) == 0 && (c & MultiLock.Sync.conflicts(unit)) == 0;
+    }
+
+    // does s hold unit, so that it can be released?
+    static boolean holds(long s, long unit) {
+        return (unit == X_UNIT) ? (s & LEAF_X_FIELD) != 0
+                                : MultiLock.Sync.holdsAll(s, unit);
+    }
+
+    abstract boolean tryAcquire(long unit);
+
+    abstract void acquire(long unit);
+
+    abstract void release(long unit);
+
+    private boolean tryLock(long unit) {
+        if (owner != null && !owner.tryAcquirePath(intentionFor(unit))) {
+            return false;
+        }
+        if (tryAcquire(unit)) {
+            return true;
+        }
+        if (owner != null) {
+            owner.releasePath(intentionFor(unit));
+        }
+        return false;
+    }
+
+    private void lock(long unit) {
+        if (owner != null) {
+            owner.acquirePath(intentionFor(unit));
+        }
+        acquire(unit);
+    }
+
+    private void unlock(long unit) {
+        release(unit);
+        if (owner != null) {
+            owner.releasePath(intentionFor(unit));
+        }
+    }
+
+    public boolean lockRead() {
+        lock(S_UNIT);
+        return true;
+    }
+
+    public boolean lockWrite() {
+        lock(X_UNIT);
+        return true;
+    }
+
+    public boolean lockIntentionRead() {
+        lock(IS_UNIT);
+        return true;
+    }
+
+    public boolean lockIntentionWrite() {
+        lock(IX_UNIT);
+        return true;
+    }
+
+    public boolean lockSharedIntentionWrite() {
+        lock(SIX_UNIT);
+        return true;
+    }
+
+    public void unlockRead() {
+        unlock(S_UNIT);
+    }
+
+    public void unlockWrite() {
+        unlock(X_UNIT);
+    }
+
+    public void unlockIntentionRead() {
+        unlock(IS_UNIT);
+    }
+
+    public void unlockIntentionWrite() {
+        unlock(IX_UNIT);
+    }
+
+    public void unlockSharedIntentionWrite() {
+        unlock(SIX_UNIT);
+    }
+
+    public boolean tryLockRead() {
+        return tryLock(S_UNIT);
+    }
+
+    public boolean tryLockWrite() {
+        return tryLock(X_UNIT);
+    }
+
+    public boolean tryLockIntentionRead() {
+        return tryLock(IS_UNIT);
+    }
+
+    public boolean tryLockIntentionWrite() {
+        return tryLock(IX_UNIT);
+    }
+
+    public boolean tryLockSharedIntentionWrite() {
+        return tryLock(SIX_UNIT);
+    }
+
+}
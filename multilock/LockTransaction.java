@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package multilock;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import multilock.MultiLock.Mode;
+
+import static multilock.MultiLock.*;
+
+/**
+ * Two-phase locking over a set of MultiLocks. Locks taken through a
+ * transaction are held until commit() (or close()), which releases them
+ * all in the reverse order they were taken. Ancestor intentions are taken
+ * once per transaction rather than once per lock: a lock whose ancestors
+ * the transaction already holds in a strong enough intention mode only
+ * takes its own mode, and one that needs IX where the transaction holds
+ * IS converts the ancestor in place. So writing 20 accounts of one
+ * branch touches the bank and the branch once each, not 20 times.
+ *
+ * A transaction belongs to the thread that created it. As with
+ * MultiLock.convert, an IS to IX upgrade waits for other threads' S on
+ * that ancestor while still holding what is below it.
+ *
+ * Transactions that lock in no fixed order can be kept out of deadlocks
+ * by giving them a DeadlockAvoidance policy. Each transaction is then
+ * stamped with an age when it first locks, and a lock() that conflicts
+ * with another transaction's hold decides by age whether to wait or to
+ * abort: it releases everything and throws TransactionAbortedException,
+ * after which the caller should undo its writes and run the transaction
+ * again. The age survives an abort, so a retried transaction only gets
+ * older and eventually wins. Only holds taken through transactions are
+ * seen; others are simply waited for.
+ *
+ * A transaction can also escalate: once it holds S or X on escalateAt of
+ * one lock's children, it converts its intention on that parent to the
+ * matching full mode (IS to S, IX to X) and releases everything it holds
+ * below it, after which locks under the parent cost nothing. If another
+ * thread then waits for the parent, the transaction de-escalates at its
+ * next lock(): it takes back the locks it gave up, returns the parent to
+ * its intention mode, and doesn't escalate that parent again.
+ */
+public final class LockTransaction implements AutoCloseable {
+
+    public enum DeadlockAvoidance {
+        // wait for any holder, so the caller must lock in a global order
+        NONE,
+        // wait only for younger holders; abort if an older one is in the
+        // way
+        WAIT_DIE,
+        // wait only for older holders; abort younger ones in the way (a
+        // wounded transaction aborts next time it has to wait)
+        WOUND_WAIT
+    }
+
+    // how long a waiting transaction goes between looking at who it waits
+    // for (and whether it has been wounded)
+    static final long SLICE_NANOS = 100000L;
+
+    static final AtomicLong clock = new AtomicLong();
+
+    // started transactions with a policy other than NONE
+    static final Set<LockTransaction> active = ConcurrentHashMap.newKeySet();
+
+    final DeadlockAvoidance avoidance;
+
+    // S/X child locks held under one parent at which it escalates, 0 for
+    // never
+    final int escalateAt;
+
+    // has the transaction locked anything since it was last committed?
+    private boolean started;
+    // when the transaction started (0 until it locks something, and
+    // always 0 for NONE, which needn't touch the shared clock), kept
+    // across aborts
+    private volatile long age;
+    // the age at which an older transaction wounded this one, so that a
+    // wound meant for an earlier transaction is ignored
+    private volatile long wounded;
+
+    // everything taken, in order, as (lock, unit) pairs. An ancestor's
+    // intention is logged before anything below it, so releasing from the
+    // end never leaves a lock held without its ancestors.
+    private MultiLock[] locks = new MultiLock[8];
+    private long[] units = new long[8];
+    private int size;
+
+    // ancestor chain (shared by siblings, see MultiLock.lineage()) most
+    // recently covered, and the intention it is held in
+    private MultiLock[] lastPath;
+    private long lastIntent;
+
+    // S/X locks held on each parent's children, or -1 once a parent has
+    // de-escalated
+    private MultiLock[] parents;
+    private int[] counts;
+    private int numParents;
+
+    // parents locked in place of what was below them (null until the
+    // first escalation)
+    private ArrayList<Escalation> escalations;
+
+    private static final class Escalation {
+        final MultiLock parent;
+        // S or X, where the transaction held IS or IX
+        final long unit;
+        // the holds under parent that were released, and those asked for
+        // since, in order
+        MultiLock[] locks;
+        long[] units;
+        int size;
+
+        Escalation(MultiLock parent, long unit, MultiLock[] locks, long[] units, int size) {
+            this.parent = parent;
+            this.unit = unit;
+            this.locks = locks;
+            this.units = units;
+            this.size = size;
+        }
+
+        void add(MultiLock l, long u) {
+            if (size == locks.length) {
+                locks = Arrays.copyOf(locks, size*2 + 1);
+                units = Arrays.copyOf(units, size*2 + 1);
+            }
+            locks[size] = l;
+            units[size++] = u;
+        }
+    }
+
+    private static final VarHandle SIZE;
+    static {
+        try {
+            SIZE = MethodHandles.lookup().findVarHandle(LockTransaction.class, "size", int.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public LockTransaction() {
+        this(DeadlockAvoidance.NONE);
+    }
+
+    public LockTransaction(DeadlockAvoidance avoidance) {
+        this(avoidance, 0);
+    }
+
+    /**
+     * @param escalateAt how many of a lock's children may be held in S or
+     *                   X before the transaction locks the parent instead,
+     *                   or 0 to never escalate
+     */
+    public LockTransaction(DeadlockAvoidance avoidance, int escalateAt) {
+        this.avoidance = avoidance;
+        this.escalateAt = escalateAt;
+    }
+
+    public void lockRead(MultiLock l) {
+        lock(l, Mode.S);
+    }
+
+    public void lockWrite(MultiLock l) {
+        lock(l, Mode.X);
+    }
+
+    /**
+     * Acquires mode on l, first taking or upgrading whatever intentions on
+     * its ancestors the transaction doesn't already hold.
+     *
+     * @throws TransactionAbortedException if the deadlock avoidance policy
+     *         aborted the transaction, which then holds nothing
+     */
+    public void lock(MultiLock l, Mode mode) {
+        if (!started) {
+            begin();
+        }
+        if (escalations != null && covered(l, mode.unit)) {
+            return;
+        }
+        long intent = intentionFor(mode.unit);
+        MultiLock[] a = l.ancestors;
+        if (a != lastPath || intent > lastIntent) {
+            for (int i=0; i<a.length; i++) {
+                intend(a[i], intent);
+            }
+            lastPath = a;
+            lastIntent = intent;
+        }
+        acquire(l, mode.unit);
+        log(l, mode.unit);
+        if (escalateAt > 0 && l.owner != null &&
+            (mode.unit == S_UNIT || mode.unit == X_UNIT)) {
+            count(l.owner);
+        }
+    }
+
+    // is l below (or at) a parent escalated in a mode that covers unit?
+    // De-escalates contended parents first.
+    private boolean covered(MultiLock l, long unit) {
+        for (int i=escalations.size()-1; i>=0; i--) {
+            if (escalations.get(i).parent.sync.hasWaiters()) {
+                deescalate(i);
+            }
+        }
+        for (int i=0; i<escalations.size(); i++) {
+            Escalation e = escalations.get(i);
+            if (l == e.parent || below(l, e.parent)) {
+                if (e.unit == S_UNIT && intentionFor(unit) == IX_UNIT) {
+                    // a write under a read escalation: back to locking
+                    // the children, which upgrades the path as usual
+                    deescalate(i);
+                    return false;
+                }
+                // held in effect, and taken for real if we de-escalate
+                e.add(l, unit);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean below(MultiLock l, MultiLock p) {
+        int depth = p.ancestors.length;
+        return l.ancestors.length > depth && l.ancestors[depth] == p;
+    }
+
+    private int indexOf(MultiLock l, long unit) {
+        for (int i=0; i<size; i++) {
+            if (locks[i] == l && units[i] == unit) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // one more child of parent held, escalating if that's enough
+    private void count(MultiLock parent) {
+        int i = 0;
+        while (i < numParents && parents[i] != parent) {
+            i++;
+        }
+        if (i == numParents) {
+            if (parents == null) {
+                parents = new MultiLock[4];
+                counts = new int[4];
+            }
+            else if (numParents == parents.length) {
+                parents = Arrays.copyOf(parents, numParents*2);
+                counts = Arrays.copyOf(counts, numParents*2);
+            }
+            parents[i] = parent;
+            counts[i] = 0;
+            numParents++;
+        }
+        if (counts[i] >= 0 && ++counts[i] >= escalateAt) {
+            escalate(parent);
+        }
+    }
+
+    // Swaps the intention held on p for S or X, then releases all below
+    // it, leaf-most first. Only if that needn't wait: a thread waiting for
+    // the other holders of p to leave, while holding locks below it that
+    // they may be waiting for, would deadlock. Otherwise it's tried again
+    // at the next child.
+    private void escalate(MultiLock p) {
+        int at = indexOf(p, IX_UNIT);
+        long from = IX_UNIT;
+        if (at < 0) {
+            at = indexOf(p, IS_UNIT);
+            from = IS_UNIT;
+        }
+        long to = (from == IX_UNIT) ? X_UNIT : S_UNIT;
+        if (!p.sync.tryConvert(from, to)) {
+            return;
+        }
+        units[at] = to;
+
+        int n = 0, released = 0;
+        MultiLock[] rl = new MultiLock[size];
+        long[] ru = new long[size];
+        for (int i=0; i<size; i++) {
+            if (below(locks[i], p)) {
+                rl[released] = locks[i];
+                ru[released++] = units[i];
+            }
+            else {
+                locks[n] = locks[i];
+                units[n++] = units[i];
+            }
+        }
+        for (int i=n; i<size; i++) {
+            locks[i] = null;
+        }
+        SIZE.setRelease(this, n);
+        for (int i=released-1; i>=0; i--) {
+            rl[i].sync.unlock(ru[i]);
+        }
+        if (escalations == null) {
+            escalations = new ArrayList<Escalation>();
+        }
+        escalations.add(new Escalation(p, to, rl, ru, released));
+        // nothing below p is held any more
+        for (int i=0; i<numParents; i++) {
+            if ((parents[i] == p || below(parents[i], p)) && counts[i] > 0) {
+                counts[i] = 0;
+            }
+        }
+        lastPath = null;
+        lastIntent = 0;
+    }
+
+    // Takes back what escalation i released, none of which can conflict
+    // with anyone as its parent is still held in S or X, and then returns
+    // the parent to its intention mode. Locks asked for since may be more
+    // than one level down, so their intentions between the parent and
+    // them are taken first, as lock() does.
+    private void deescalate(int i) {
+        Escalation e = escalations.remove(i);
+        int depth = e.parent.ancestors.length;
+        for (int j=0; j<e.size; j++) {
+            MultiLock l = e.locks[j];
+            MultiLock[] a = l.ancestors;
+            for (int k=depth+1; k<a.length; k++) {
+                intend(a[k], intentionFor(e.units[j]));
+            }
+            acquire(l, e.units[j]);
+            log(l, e.units[j]);
+        }
+        long intent = (e.unit == X_UNIT) ? IX_UNIT : IS_UNIT;
+        int at = indexOf(e.parent, e.unit);
+        e.parent.sync.convert(e.unit, intent);
+        units[at] = intent;
+        SIZE.setRelease(this, size);
+        for (int j=0; j<numParents; j++) {
+            if (parents[j] == e.parent) {
+                counts[j] = -1;
+            }
+        }
+    }
+
+    // holds intent (or stronger) on ancestor a for the transaction
+    private void intend(MultiLock a, long intent) {
+        for (int i=0; i<size; i++) {
+            if (locks[i] == a && (units[i] == IS_UNIT || units[i] == IX_UNIT)) {
+                if (units[i] < intent) {
+                    upgrade(a, units[i], intent);
+                    units[i] = intent;
+                    SIZE.setRelease(this, size);
+                }
+                return;
+            }
+        }
+        acquire(a, intent);
+        log(a, intent);
+    }
+
+    private void begin() {
+        started = true;
+        if (avoidance != DeadlockAvoidance.NONE) {
+            age = clock.incrementAndGet();
+            active.add(this);
+        }
+    }
+
+    private void acquire(MultiLock l, long unit) {
+        if (avoidance == DeadlockAvoidance.NONE) {
+            l.sync.lock(unit);
+        }
+        else if (!l.sync.tryLock(unit)) {
+            await(l, 0, unit);
+        }
+    }
+
+    private void upgrade(MultiLock l, long from, long to) {
+        if (avoidance == DeadlockAvoidance.NONE) {
+            l.sync.convert(from, to);
+        }
+        else if (!l.sync.tryConvert(from, to)) {
+            await(l, from, to);
+        }
+    }
+
+    // Waits a slice at a time to take unit on l (converting from, unless
+    // that is 0), deciding before each slice whether to keep waiting.
+    private void await(MultiLock l, long from, long unit) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                resolve(l, unit);
+                if (from != 0) {
+                    if (l.sync.tryConvert(from, unit)) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, SLICE_NANOS);
+                }
+                else {
+                    try {
+                        if (l.sync.tryLockNanos(unit, SLICE_NANOS)) {
+                            return;
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // applies the policy to the transactions whose holds on l conflict
+    // with unit
+    private void resolve(MultiLock l, long unit) {
+        if (wounded == age) {
+            abort();
+        }
+        for (LockTransaction t : active) {
+            long a = t.age;
+            if (t == this || a == 0 || !t.blocks(l, unit)) {
+                continue;
+            }
+            if (a < age) {
+                if (avoidance == DeadlockAvoidance.WAIT_DIE) {
+                    abort();
+                }
+            }
+            else if (avoidance == DeadlockAvoidance.WOUND_WAIT) {
+                t.wounded = a;
+            }
+        }
+    }
+
+    // Does this transaction hold l in a mode that conflicts with unit? Run
+    // by other threads, so it reads the log as published by SIZE, and
+    // tolerates entries that are already being released.
+    private boolean blocks(MultiLock l, long unit) {
+        int n = (int) SIZE.getAcquire(this);
+        MultiLock[] ls = locks;
+        long[] us = units;
+        for (int i=0; i<n && i<ls.length && i<us.length; i++) {
+            if (ls[i] == l) {
+                long u = us[i];
+                if (u == X_UNIT || unit == X_UNIT || (Sync.conflicts(unit) & u) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void abort() {
+        release();
+        wounded = 0;
+        // let whoever we made way for have the locks before we retry
+        Thread.yield();
+        throw new TransactionAbortedException();
+    }
+
+    private void log(MultiLock l, long unit) {
+        if (size == locks.length) {
+            locks = Arrays.copyOf(locks, size*2);
+            units = Arrays.copyOf(units, size*2);
+        }
+        locks[size] = l;
+        units[size] = unit;
+        SIZE.setRelease(this, size + 1);
+    }
+
+    /**
+     * Releases everything the transaction holds, most recently taken
+     * first. The transaction can then be reused, and will be given a new
+     * age.
+     */
+    public void commit() {
+        release();
+        if (started && avoidance != DeadlockAvoidance.NONE) {
+            active.remove(this);
+            age = 0;
+        }
+        started = false;
+    }
+
+    private void release() {
+        for (int i=size-1; i>=0; i--) {
+            SIZE.setRelease(this, i);
+            locks[i].sync.unlock(units[i]);
+            locks[i] = null;
+        }
+        lastPath = null;
+        lastIntent = 0;
+        for (int i=0; i<numParents; i++) {
+            parents[i] = null;
+        }
+        numParents = 0;
+        escalations = null;
+    }
+
+    public void close() {
+        commit();
+    }
+
+}
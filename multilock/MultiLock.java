@@ -27,7 +27,15 @@
 package multilock;
 
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.*;
 
 public class MultiLock {
@@ -44,16 +52,109 @@ public class MultiLock {
     static final long S_UNIT  = 0x0000000100000000L;
     static final long IX_UNIT = 0x0000000000010000L;
     static final long IS_UNIT = 0x0000000000000001L;
+    
+    // SIX is S and IX held together by one thread, taken in one step
+    static final long SIX_UNIT = S_UNIT + IX_UNIT;
+
+    public enum Mode {
+        IS(IS_UNIT), IX(IX_UNIT), S(S_UNIT), SIX(SIX_UNIT), X(X_UNIT);
+
+        final long unit;
+
+        Mode(long u) {
+            unit = u;
+        }
+    }
+
+    /**
+     * Whether a new acquisition may overtake threads already queued on a
+     * lock. Re-entrant acquisitions, and those by a thread already holding
+     * the lock in some mode, never wait for the queue as that could
+     * deadlock.
+     */
+    public enum Fairness {
+        // take the lock whenever the held modes allow it
+        BARGING,
+        // queue behind anyone already waiting
+        FIFO,
+        // queue only behind waiters in a conflicting mode, so e.g. scans
+        // (S) arriving while writers (IX) wait go in together after them,
+        // rather than barging or trailing every compatible waiter
+        PHASE_FAIR
+    }
+
+    /**
+     * How a lock keeps its counts. PACKED gives each mode 16 bits of one
+     * word (at most 65535 holders per mode, unchecked). STRIPED moves IS/IX
+     * into per-CPU cells for hot roots. WIDE counts threads rather than
+     * acquisitions, giving IS, IX and S 21 bits each, and checks for
+     * overflow. QUEUED counts like PACKED but parks waiters in a queue of
+     * its own that knows their modes, instead of AQS's.
+     */
+    public enum Layout { PACKED, STRIPED, WIDE, QUEUED }
+
+    static final MultiLock[] NO_ANCESTORS = new MultiLock[0];
 
     final MultiLock owner;
     final Sync sync;
     
+    // owner chain, root first. owner is final so this never changes, and
+    // siblings share the same array (see lineage()).
+    final MultiLock[] ancestors;
+    private MultiLock[] lineage;
+    
     final ReadLock readLock;
     final WriteLock writeLock;
     
     public MultiLock(MultiLock o) {
+        this(o, Layout.PACKED, Fairness.BARGING);
+    }
+    
+    public MultiLock(MultiLock o, Fairness fairness) {
+        this(o, Layout.PACKED, fairness);
+    }
+    
+    public MultiLock(MultiLock o, Layout layout) {
+        this(o, layout, Fairness.BARGING);
+    }
+    
+    public MultiLock(MultiLock o, Layout layout, Fairness fairness) {
+        this(o, layout, fairness, false);
+    }
+    
+    /**
+     * @param layout how the counts are kept. STRIPED keeps IS/IX counts in
+     *               per-CPU cells rather than in the lock state, for hot
+     *               roots whose intention traffic would otherwise all CAS
+     *               one cache line; S and X pay for this by having to wait
+     *               for the cells to drain. WIDE is for locks that may have
+     *               more than 65535 holders in a mode. QUEUED lets a waiter
+     *               in as soon as its mode is compatible with the holders,
+     *               rather than only when the waiters ahead of it are.
+     * @param fairness which queued threads a new acquisition must wait for
+     * @param optimistic whether to count the X and IX acquisitions that
+     *                   tryOptimisticRead and validate need. This costs an
+     *                   extra atomic add on each, so it is off by default,
+     *                   and the lock and all its ancestors must have it on
+     *                   for optimistic reads of the lock to succeed.
+     */
+    public MultiLock(MultiLock o, Layout layout, Fairness fairness, boolean optimistic) {
         owner = o;
-        sync = new Sync();
+        ancestors = (o == null) ? NO_ANCESTORS : o.lineage();
+        switch (layout) {
+        case STRIPED:
+            sync = new StripedSync(fairness, optimistic);
+            break;
+        case WIDE:
+            sync = new WideSync(fairness, optimistic);
+            break;
+        case QUEUED:
+            sync = new QueuedSync(fairness, optimistic);
+            break;
+        default:
+            sync = new Sync(fairness, optimistic);
+        }
+        sync.multiLock = this;
         readLock = new ReadLock();
         writeLock = new WriteLock();
     }
@@ -69,7 +170,7 @@ public class MultiLock {
         }        
         
         public void lockInterruptibly() throws InterruptedException {
-            throw new UnsupportedOperationException();
+            lockReadInterruptibly();
         }
 
         public Condition newCondition() {
@@ -77,12 +178,12 @@ public class MultiLock {
         }
 
         public boolean tryLock() {
-            throw new UnsupportedOperationException();
+            return tryLockRead();
         }
 
         public boolean tryLock(long time, TimeUnit unit)
                 throws InterruptedException {
-            throw new UnsupportedOperationException();
+            return tryLockRead(time, unit);
         }
 
     }
@@ -98,7 +199,7 @@ public class MultiLock {
         }
 
         public void lockInterruptibly() throws InterruptedException {
-            throw new UnsupportedOperationException();
+            lockWriteInterruptibly();
         }
 
         public Condition newCondition() {
@@ -106,16 +207,26 @@ public class MultiLock {
         }
 
         public boolean tryLock() {
-            throw new UnsupportedOperationException();
+            return tryLockWrite();
         }
 
         public boolean tryLock(long time, TimeUnit unit)
                 throws InterruptedException {
-            throw new UnsupportedOperationException();
+            return tryLockWrite(time, unit);
         }
 
     }
     
+    /**
+     * Spinning counters over all locks since startup: acquisitions that
+     * spinning got without parking, spins that gave up and parked, and CAS
+     * failures backed off from.
+     */
+    public static long[] spinCounters() {
+        return new long[] { Sync.spinAcquired.sum(), Sync.spinParked.sum(),
+                            Sync.casBackoffs.sum() };
+    }
+    
     public Lock readLock() { return readLock; }
     
     public Lock writeLock() { return writeLock; }
@@ -127,249 +238,2186 @@ public class MultiLock {
         static long ixCount(long c) { return (c & IX_FIELD) >> 16; }
         static long isCount(long c) { return c & IS_FIELD; }
         
+        // field mask for a unit (each field is 16 bits wide)
+        static long fieldOf(long unit) { return unit * 0xFFFF; }
+        
+        // A thread's contribution to the shared state for its hold counts.
+        // S is counted once per acquisition, but IS and IX at most once per
+        // thread: re-entrant intentions are only counted thread-locally.
+        static long published(long h) {
+            long p = h & S_FIELD;
+            if ((h & IX_FIELD) != 0) p += IX_UNIT;
+            if ((h & IS_FIELD) != 0) p += IS_UNIT;
+            return p;
+        }
+        
+        // tryReleaseShared arg that only wakes waiters
+        static final long SIGNAL = 0;
+        
         // store's per-thread state
         static class HoldCounter { 
-            final long tid = Thread.currentThread().getId();
             long state = 0;
+            long striped = 0; // IS/IX units published in a StripedSync cell
         }
         
-        static class ThreadLocalHoldCounter extends ThreadLocal<HoldCounter> {
+        /**
+         * A thread's HoldCounters for all the locks it holds, keyed by
+         * Sync.id, in one open-addressed (linear probing) table shared by
+         * every MultiLock. A counter is removed as soon as its thread holds
+         * nothing on its lock, so the table only grows with the number of
+         * locks held at once, not the number ever touched.
+         */
+        static final class HoldTable {
+            static final int INITIAL = 8;
+            
+            long[] keys = new long[INITIAL]; // 0 marks a free slot
+            HoldCounter[] counters = new HoldCounter[INITIAL];
+            int size;
+            
+            // the last counter found, as a thread mostly works one lock at
+            // a time. Thread-confined, unlike a cache on the Sync would be.
+            long lastId;
+            HoldCounter last;
+            
+            // What the thread is blocked for, kept for DeadlockDetector only
+            // when TRACK_WAITS is on. waitingOn is written last on the way
+            // in, so whoever reads it also sees the rest, and the table.
+            final Thread thread = Thread.currentThread();
+            long waitingFor;
+            boolean interruptibly;
+            long waits;
+            volatile Sync waitingOn;
+            
+            static int slot(long id, int mask) {
+                return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            }
+            
+            HoldCounter find(long id) {
+                if (lastId == id) {
+                    return last;
+                }
+                long[] k = keys;
+                int mask = k.length - 1;
+                for (int i = slot(id, mask); k[i] != 0; i = (i + 1) & mask) {
+                    if (k[i] == id) {
+                        lastId = id;
+                        return last = counters[i];
+                    }
+                }
+                return null;
+            }
+            
+            // find() for other threads: no cache update, and a stale answer
+            // if the owner is changing the table
+            HoldCounter peek(long id) {
+                long[] k = keys;
+                HoldCounter[] v = counters;
+                int mask = Math.min(k.length, v.length) - 1;
+                for (int i = slot(id, mask); k[i] != 0; i = (i + 1) & mask) {
+                    if (k[i] == id) {
+                        return v[i];
+                    }
+                }
+                return null;
+            }
+            
+            HoldCounter get(long id) {
+                HoldCounter rh = find(id);
+                if (rh == null) {
+                    if (2 * (size + 1) > keys.length) {
+                        rehash(keys.length * 2);
+                    }
+                    rh = new HoldCounter();
+                    put(id, rh);
+                    size++;
+                    lastId = id;
+                    last = rh;
+                }
+                return rh;
+            }
+            
+            void remove(long id) {
+                if (lastId == id) {
+                    lastId = 0;
+                    last = null;
+                }
+                long[] k = keys;
+                int mask = k.length - 1;
+                int i = slot(id, mask);
+                while (k[i] != id) {
+                    if (k[i] == 0) {
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                }
+                if (--size == 0 && k.length > INITIAL) {
+                    // nothing held any more, drop the grown arrays
+                    keys = new long[INITIAL];
+                    counters = new HoldCounter[INITIAL];
+                    return;
+                }
+                // empty slot i, then move back any later entry of the probe
+                // run that could no longer be found past the gap
+                for (;;) {
+                    k[i] = 0;
+                    counters[i] = null;
+                    int j = i;
+                    int home;
+                    do {
+                        j = (j + 1) & mask;
+                        if (k[j] == 0) {
+                            return;
+                        }
+                        home = slot(k[j], mask);
+                    } while (((j - home) & mask) < ((j - i) & mask));
+                    k[i] = k[j];
+                    counters[i] = counters[j];
+                    i = j;
+                }
+            }
+            
+            private void put(long id, HoldCounter rh) {
+                int mask = keys.length - 1;
+                int i = slot(id, mask);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = id;
+                counters[i] = rh;
+            }
+            
+            private void rehash(int n) {
+                long[] k = keys;
+                HoldCounter[] v = counters;
+                keys = new long[n];
+                counters = new HoldCounter[n];
+                for (int i=0; i<k.length; i++) {
+                    if (k[i] != 0) {
+                        put(k[i], v[i]);
+                    }
+                }
+            }
+        }
+        
+        static class ThreadLocalHoldTable extends ThreadLocal<HoldTable> {
             @Override
-            protected HoldCounter initialValue() {
-                return new HoldCounter();
+            protected HoldTable initialValue() {
+                HoldTable t = new HoldTable();
+                if (TRACK_WAITS) {
+                    tables.add(t);
+                }
+                return t;
             }
         }
         
-        final ThreadLocalHoldCounter holdCounts;
+        static final ThreadLocalHoldTable holdTables = new ThreadLocalHoldTable();
         
-        HoldCounter cachedHoldCounter;
+        // Deadlock detection. With -Dmultilock.detectDeadlocks=true every
+        // thread's hold table is registered here, and a thread about to
+        // block notes what for in its table; otherwise the checks below
+        // fold away and blocking costs nothing extra.
+        static final boolean TRACK_WAITS = Boolean.getBoolean("multilock.detectDeadlocks");
+        static final Set<HoldTable> tables = ConcurrentHashMap.newKeySet();
         
-        Sync() {
-            holdCounts = new ThreadLocalHoldCounter();
-            setState(getState()); // ensures visibility of holdCounts
+        final void waiting(long unit, boolean interruptibly) {
+            HoldTable t = holdTables.get();
+            t.waitingFor = unit;
+            t.interruptibly = interruptibly;
+            t.waits++;
+            t.waitingOn = this;
         }
         
-        @Override
-        protected boolean tryAcquire(long arg) {
-            Thread current = Thread.currentThread();
+        static void doneWaiting() {
+            holdTables.get().waitingOn = null;
+        }
+        
+        // set once by the MultiLock that owns this, for reporting
+        MultiLock multiLock;
+        
+        static final AtomicLong nextId = new AtomicLong();
+        
+        // this lock's key in the hold tables, never 0
+        final long id = nextId.incrementAndGet();
+        
+        final Fairness fairness;
+        
+        // acquisitions in progress, packed like the state (PHASE_FAIR only)
+        final AtomicLong pending = new AtomicLong();
+        
+        // Versions for optimistic reads: X and IX acquisitions so far. Each
+        // is bumped after the acquiring CAS and before the holder can write
+        // anything, by an atomic add so those writes can't float above it.
+        // Only kept if versioned, to leave the fast paths at one CAS.
+        final boolean versioned;
+        volatile long exclusives, intentions;
+        
+        private static final VarHandle EXCLUSIVES, INTENTIONS;
+        static {
+            try {
+                MethodHandles.Lookup l = MethodHandles.lookup();
+                EXCLUSIVES = l.findVarHandle(Sync.class, "exclusives", long.class);
+                INTENTIONS = l.findVarHandle(Sync.class, "intentions", long.class);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+        
+        Sync(Fairness f, boolean versioned) {
+            fairness = f;
+            this.versioned = versioned;
+        }
+        
+        final void wroteExclusive() {
+            if (versioned) {
+                EXCLUSIVES.getAndAdd(this, 1L);
+            }
+        }
+        
+        final void wroteIntention() {
+            if (versioned) {
+                INTENTIONS.getAndAdd(this, 1L);
+            }
+        }
+        
+        // IX acquisitions so far, wherever they were counted
+        long intentionVersion() {
+            return intentions;
+        }
+        
+        final Thread owner() {
+            return getExclusiveOwnerThread();
+        }
+        
+        // may a thread be writing here (X), or below here too (X or IX)?
+        boolean writersIn(boolean subtree) {
             long c = getState();
-            if (c != 0) {
-                long x = c & X_FIELD;
-                // (Note: if c != 0 and x == 0 then non-exclusive count != 0)
-                if (x == 0) {
-                    // Check non-exclusive counts are only for current.
-                    // i.e. are we upgrading?
-                    HoldCounter rh = cachedHoldCounter;
-                    if (rh == null || rh.tid != current.getId())
-                        rh = holdCounts.get();
-                    long group = c - rh.state;
-                    if ((group & NON_X_FIELDS) != 0) {
-                        // current thread is not only non-exclusive user
-                        return false;
-                    }
+            return (c & (subtree ? X_FIELD | IX_FIELD : X_FIELD)) != 0;
+        }
+        
+        // the current thread's counts here
+        final HoldCounter holdCounter() {
+            return holdTables.get().get(id);
+        }
+        
+        // the current thread's counts here, without adding an entry
+        final HoldCounter peekHoldCounter() {
+            HoldCounter rh = holdTables.get().find(id);
+            return (rh == null) ? NO_HOLDS : rh;
+        }
+        
+        static final HoldCounter NO_HOLDS = new HoldCounter();
+        
+        // drop rh from the current thread's table if it holds nothing
+        final void forget(HoldCounter rh) {
+            if (rh.state == 0 && rh != NO_HOLDS) {
+                holdTables.get().remove(id);
+            }
+        }
+        
+        // Spinning. A thread that finds the lock taken retries up to
+        // spinLimit times before it parks, which saves a park/unpark
+        // handoff when holds are short. Each lock tunes its limit to its
+        // hold times: doubled when a spin gets the lock in time, halved
+        // when it has to park anyway. Set -Dmultilock.maxSpins=0 to never
+        // spin (the default on one CPU, where it can't help).
+        
+        static final int MAX_SPINS = Integer.getInteger("multilock.maxSpins",
+                Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0);
+        static final int MIN_SPINS = Math.min(MAX_SPINS, 16);
+        
+        // what spinning decided, over all locks
+        static final LongAdder spinAcquired = new LongAdder();
+        static final LongAdder spinParked = new LongAdder();
+        static final LongAdder casBackoffs = new LongAdder();
+        
+        int spinLimit = MIN_SPINS; // racy, only a hint
+        
+        // How much this lock has made threads block lately, for
+        // lockAdaptive. Each acquisition that has to block adds
+        // HEAT_PER_BLOCK, and the heat halves every HALF_LIFE_NANOS. Only
+        // blocking threads write it, so lockAdaptive's reads leave the
+        // lock's cache line alone. A lock turns hot at HOT and only cools
+        // again below COOL: once made fine-grained it stops blocking, and
+        // without the gap would turn coarse again as soon as it cooled.
+        // Racy, only a hint.
+        static final int HEAT_PER_BLOCK = 1 << 10;
+        static final int HOT = 1 << 12;
+        static final int COOL = 1 << 8;
+        static final int MAX_HEAT = 1 << 16;
+        static final long HALF_LIFE_NANOS = 1000000L;
+        int heat;
+        long heatedAt;
+        boolean hot;
+        
+        // the heat, decayed to now
+        private int heat(long now) {
+            long halvings = (now - heatedAt) / HALF_LIFE_NANOS;
+            return (halvings >= 32) ? 0 : heat >>> halvings;
+        }
+        
+        final void blocked() {
+            long now = System.nanoTime();
+            int h = Math.min(heat(now) + HEAT_PER_BLOCK, MAX_HEAT);
+            heat = h;
+            heatedAt = now;
+            if (h >= HOT && !hot) {
+                hot = true;
+            }
+        }
+        
+        // true unless threads have been blocking here lately
+        final boolean cold() {
+            if (!hot) {
+                return true;
+            }
+            if (heat(System.nanoTime()) >= COOL) {
+                return false;
+            }
+            hot = false;
+            return true;
+        }
+        
+        private boolean tryAcquireUnit(long unit) {
+            return (unit == X_UNIT) ? tryAcquire(unit)
+                                    : tryAcquireShared(unit) >= 0;
+        }
+        
+        // true if unit was taken without parking
+        final boolean spin(long unit) {
+            return spin(unit, false, 0L);
+        }
+        
+        // As spin(unit), but if timed gives up at deadline (a nanoTime).
+        // A try that runs out of time there never parks, so it doesn't
+        // count as blocking.
+        final boolean spin(long unit, boolean timed, long deadline) {
+            if (tryAcquireUnit(unit)) {
+                return true;
+            }
+            if (timed && deadline - System.nanoTime() <= 0L) {
+                return false;
+            }
+            int limit = spinLimit;
+            if (limit == 0) {
+                blocked();
+                return false;
+            }
+            for (int i=0; i<limit; i++) {
+                Thread.onSpinWait();
+                if (tryAcquireUnit(unit)) {
+                    spinLimit = Math.min(MAX_SPINS, limit << 1);
+                    spinAcquired.increment();
+                    return true;
                 }
-                else if (current != getExclusiveOwnerThread()) {
+                if (timed && (i & 15) == 15 &&
+                    deadline - System.nanoTime() <= 0L) {
                     return false;
                 }
             }
-            if (!compareAndSetState(c, c + X_UNIT))
+            spinLimit = Math.max(MIN_SPINS, limit >> 1);
+            if (timed && deadline - System.nanoTime() <= 0L) {
                 return false;
-            setExclusiveOwnerThread(current);
-            return true;
+            }
+            spinParked.increment();
+            blocked();
+            return false;
         }
         
-        @Override
-        protected boolean tryRelease(long arg) {
-            long nextc = getState() - arg;
-            if (Thread.currentThread() != getExclusiveOwnerThread()) {
-                throw new IllegalMonitorStateException();
+        // after a failed CAS, waits 2^failures spins (up to 64) for the
+        // other writers to get out of the way
+        static int backoff(int failures) {
+            for (int i = 1 << Math.min(failures, 6); i > 0; i--) {
+                Thread.onSpinWait();
             }
-            if ((nextc & X_FIELD) == 0) {
-                setExclusiveOwnerThread(null);
-                setState(nextc);
-                return true;
+            casBackoffs.increment();
+            return failures + 1;
+        }
+        
+        // A thread already holding a mode here may be waiting only for the
+        // others to leave (S to X with other readers, say). Their releases
+        // needn't empty a field, and AQS only wakes the head of its queue,
+        // so such a thread doesn't queue in AQS at all. It parks on this
+        // stack instead, and while the stack isn't empty every release
+        // wakes all of it to look again.
+        static final class HolderWaiter {
+            final Thread thread = Thread.currentThread();
+            HolderWaiter next;
+        }
+        
+        volatile HolderWaiter holderWaiters;
+        
+        private static final VarHandle HOLDER_WAITERS;
+        static {
+            try {
+                HOLDER_WAITERS = MethodHandles.lookup().findVarHandle(
+                        Sync.class, "holderWaiters", HolderWaiter.class);
             }
-            else {
-                setState(nextc);
-                return false;
+            catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
             }
         }
-
-        @Override
-        protected long tryAcquireShared(long arg) {
-            Thread current = Thread.currentThread();
-            for (;;) {
-                long c = getState();
-                // someone else already is X
-                if ((c & X_FIELD) != 0 &&
-                    getExclusiveOwnerThread() != current)
-                    return -1;
-                // either no X or current is X
-                if (getExclusiveOwnerThread() == current) {
-                    if (updateState(c, arg, current)) {
-                        return 0;
-                    }
+        
+        private boolean holdsHere() {
+            return peekHoldCounter().state != 0;
+        }
+        
+        // after a release: wakes the holders waiting here, if any
+        final void wakeHolderWaiters() {
+            if (holderWaiters != null) {
+                HolderWaiter w = (HolderWaiter) HOLDER_WAITERS.getAndSet(this, null);
+                for (; w != null; w = w.next) {
+                    LockSupport.unpark(w.thread);
                 }
-                else if (arg == IS_UNIT) { // IS is compatible with S, IX, IS
-                    if (updateState(c, arg, current)) {
-                        return 1;
+            }
+        }
+        
+        // Parks on holderWaiters until unit is taken (true), or until
+        // nanos run out if timed (false). An interrupt throws if
+        // interruptible, and is otherwise kept for the caller.
+        private boolean awaitAsHolder(long unit, boolean interruptible,
+                                     boolean timed, long nanos)
+                throws InterruptedException {
+            long deadline = timed ? System.nanoTime() + nanos : 0L;
+            boolean interrupted = false;
+            try {
+                for (;;) {
+                    HolderWaiter w = new HolderWaiter();
+                    HolderWaiter h;
+                    do {
+                        h = holderWaiters;
+                        w.next = h;
+                    } while (!HOLDER_WAITERS.compareAndSet(this, h, w));
+                    // pushed before looking, so a release after the look
+                    // sees us
+                    if (tryAcquireUnit(unit)) {
+                        return true;
                     }
-                }
-                else if (arg == IX_UNIT) {
-                    // two cases: S == 0 (ok) and S != 0 (thread check)
-                    long s = c & S_FIELD;
-                    if (s == 0) {
-                        // ok
-                        if (updateState(c, arg, current)) {
-                            return 1;
+                    if (timed) {
+                        nanos = deadline - System.nanoTime();
+                        if (nanos <= 0L) {
+                            return false;
                         }
+                        LockSupport.parkNanos(this, nanos);
                     }
                     else {
-                        // Check if current thread is the only S
-                        // TODO: optimise so that re-entrant IX locking is fast
-                        HoldCounter rh = null; //cachedHoldCounter;
-                        if (rh == null || rh.tid != current.getId())
-                            rh = holdCounts.get();
-                        long group = c - rh.state;
-                        if ((group & S_FIELD) == 0) {
-                            // current is only S
-                            if (compareAndSetState(c, c + arg)) {
-                                rh.state += arg;
-                                cachedHoldCounter = rh;
-                                return 1; // still return 1 because IS is always compatible
-                            }                            
-                        }
-                    }
-                }
-                else if (arg == S_UNIT) {
-                    // two cases: IX == 0 (ok) and IX != 0 (thread check)
-                    long ix = c & IX_FIELD;
-                    if (ix == 0) {
-                        // ok
-                        if (updateState(c, arg, current)) {
-                            return 1;
-                        }
+                        LockSupport.park(this);
                     }
-                    else {
-                        // check if current thread is the only IX
-                        // TODO: optimise so that re-entrant S locking is fast
-                        HoldCounter rh = cachedHoldCounter;
-                        if (rh == null || rh.tid != current.getId())
-                            rh = holdCounts.get();
-                        long group = c - rh.state;
-                        if ((group & IX_FIELD) == 0) {
-                            // current is only IX
-                            if (compareAndSetState(c, c + arg)) {
-                                rh.state += arg;
-                                cachedHoldCounter = rh;
-                                return 1; // still return 1 because IS is always compatible
-                            }                            
+                    if (Thread.interrupted()) {
+                        if (interruptible) {
+                            throw new InterruptedException();
                         }
+                        interrupted = true;
                     }
                 }
             }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
         
-        private boolean updateState(long c, long arg, Thread current) {
-            if (compareAndSetState(c, c + arg)) {
-                HoldCounter rh = cachedHoldCounter;
-                if (rh == null || rh.tid != current.getId())
-                    cachedHoldCounter = rh = holdCounts.get();
-                rh.state += arg;
-                return true;
-            }
-            return false;
+        private boolean acquireNanos(long unit, long nanos)
+                throws InterruptedException {
+            return (unit == X_UNIT) ? tryAcquireNanos(unit, nanos)
+                                    : tryAcquireSharedNanos(unit, nanos);
         }
         
-        @Override
-        protected boolean tryReleaseShared(long arg) {
-            HoldCounter rh = cachedHoldCounter;
-            Thread current = Thread.currentThread();
-            if (rh == null || rh.tid != current.getId())
-                rh = holdCounts.get();
-            rh.state -= arg;
-            for (;;) {
-                long c = getState();
-                long nextc = c - arg;
-                if (compareAndSetState(c, nextc)) {
-                    if ((nextc & X_FIELD) == 0) {
-                        if (arg == S_UNIT) {
-                            return (nextc & S_FIELD) == 0;
-                        }
-                        if (arg == IS_UNIT) {
-                            return (nextc & IS_FIELD) == 0;
-                        }
-                        if (arg == IX_UNIT) {
-                            return (nextc & IX_FIELD) == 0;
-                        }
+        // entry points used by MultiLock to take unit on this lock alone
+        
+        void lock(long unit) {
+            enter(unit);
+            boolean blocked = false;
+            try {
+                if (spin(unit)) {
+                    return;
+                }
+                if (TRACK_WAITS) {
+                    waiting(unit, false);
+                    blocked = true;
+                }
+                if (holdsHere()) {
+                    try {
+                        awaitAsHolder(unit, false, false, 0L);
                     }
-                    else {
-                        return false;
+                    catch (InterruptedException e) {
+                        // not interruptible, so never thrown
+                        throw new AssertionError(e);
                     }
                 }
+                else if (unit == X_UNIT) {
+                    acquire(unit);
+                }
+                else {
+                    acquireShared(unit);
+                }
+            }
+            finally {
+                if (blocked) {
+                    doneWaiting();
+                }
+                leave(unit);
             }
         }
         
-    }
-    
-    public boolean lockRead() {
-        if (owner != null) {
-            owner.lockIntentionRead();
+        boolean tryLock(long unit) {
+            enter(unit);
+            try {
+                return tryAcquireUnit(unit);
+            }
+            finally {
+                leave(unit);
+            }
         }
-        sync.acquireShared(S_UNIT);
-        return true;
-    }
-    
-    public boolean lockWrite() {
-        if (owner != null) {
-            owner.lockIntentionWrite();
+        
+        boolean tryLockNanos(long unit, long nanos)
+                throws InterruptedException {
+            enter(unit);
+            boolean blocked = false;
+            try {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long deadline = System.nanoTime() + nanos;
+                if (spin(unit, true, deadline)) {
+                    return true;
+                }
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0L) {
+                    return false;
+                }
+                if (TRACK_WAITS) {
+                    waiting(unit, true);
+                    blocked = true;
+                }
+                if (holdsHere()) {
+                    return awaitAsHolder(unit, true, true, nanos);
+                }
+                return acquireNanos(unit, nanos);
+            }
+            finally {
+                if (blocked) {
+                    doneWaiting();
+                }
+                leave(unit);
+            }
         }
-        sync.acquire(X_UNIT);
-        return true;
-    }
-    
-    public boolean lockIntentionRead() {
-        if (owner != null) {
-            owner.lockIntentionRead();
+        
+        void lockInterruptibly(long unit) throws InterruptedException {
+            enter(unit);
+            boolean blocked = false;
+            try {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (spin(unit)) {
+                    return;
+                }
+                if (TRACK_WAITS) {
+                    waiting(unit, true);
+                    blocked = true;
+                }
+                if (holdsHere()) {
+                    awaitAsHolder(unit, true, false, 0L);
+                }
+                else if (unit == X_UNIT) {
+                    acquireInterruptibly(unit);
+                }
+                else {
+                    acquireSharedInterruptibly(unit);
+                }
+            }
+            finally {
+                if (blocked) {
+                    doneWaiting();
+                }
+                leave(unit);
+            }
         }
-        sync.acquireShared(IS_UNIT);
-        return true;
-    }
-    
-    public boolean lockIntentionWrite() {
-        if (owner != null) {
-            owner.lockIntentionWrite();
+        
+        // PHASE_FAIR keeps count of the acquisitions in progress per mode
+        
+        private void enter(long unit) {
+            if (fairness == Fairness.PHASE_FAIR) {
+                pending.getAndAdd(unit);
+            }
         }
-        sync.acquireShared(IX_UNIT);
-        return true;
-    }
- 
-    public void unlockRead() {
-        sync.releaseShared(S_UNIT);
-        if (owner != null) {
-            owner.unlockIntentionRead();
+        
+        private void leave(long unit) {
+            if (fairness == Fairness.PHASE_FAIR) {
+                pending.getAndAdd(-unit);
+            }
         }
-    }
+        
+        // should a thread holding nothing here wait for the queue rather
+        // than take unit now?
+        boolean shouldBlock(long unit) {
+            switch (fairness) {
+            case FIFO:
+                return hasQueuedPredecessors();
+            case PHASE_FAIR:
+                // only wait for acquisitions we would conflict with
+                long others = pending.get() - unit;
+                if (unit != X_UNIT) {
+                    others &= X_FIELD | conflicts(unit);
+                }
+                return others != 0 && hasQueuedPredecessors();
+            default:
+                return false;
+            }
+        }
+        
+        void unlock(long unit) {
+            if (unit == X_UNIT) {
+                release(unit);
+            }
+            else {
+                releaseShared(unit);
+            }
+            wakeHolderWaiters();
+        }
+        
+        // wakes the waiters a change of state may have let in
+        void signal() {
+            releaseShared(SIGNAL);
+            wakeHolderWaiters();
+        }
+        
+        // after a change that gave up some of the current thread's units
+        // without emptying a field: that can't let in a newcomer, but may
+        // let in a waiter that already holds here
+        void holdsDropped() {
+            wakeHolderWaiters();
+        }
+        
+        // are threads parked waiting for this lock?
+        boolean hasWaiters() {
+            return hasQueuedThreads() || holderWaiters != null;
+        }
+        
+        // Swap the current thread's hold of from for to. Takes to before
+        // giving up from when it can't be done in place, so there is never
+        // a point where neither is held.
+        
+        void convert(long from, long to) {
+            if (!convertInPlace(from, to)) {
+                lock(to);
+                unlock(from);
+            }
+        }
+        
+        boolean tryConvert(long from, long to) {
+            if (convertInPlace(from, to)) {
+                return true;
+            }
+            if (tryLock(to)) {
+                unlock(from);
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Converts with a single state update, if to is compatible with the
+         * other threads' holds. Returns false if it would have to wait.
+         */
+        boolean convertInPlace(long from, long to) {
+            if (from == to) {
+                return true;
+            }
+            Thread current = Thread.currentThread();
+            HoldCounter rh = holdCounter();
+            long h = rh.state;
+            if (from == X_UNIT) {
+                if (current != getExclusiveOwnerThread()) {
+                    throw new IllegalMonitorStateException();
+                }
+                // as in tryRelease, nobody else writes the state while we
+                // are X
+                long nextc = getState() - X_UNIT
+                           + published(h + to) - published(h);
+                rh.state = h + to;
+                if ((nextc & X_FIELD) == 0) {
+                    setExclusiveOwnerThread(null);
+                    setState(nextc);
+                    // downgrade: wake the waiters compatible with to
+                    signal();
+                }
+                else {
+                    setState(nextc);
+                }
+                return true;
+            }
+            if (!holdsAll(h, from)) {
+                throw new IllegalMonitorStateException();
+            }
+            long rest = h - from;
+            long mine = published(h) - rh.striped;
+            if (to == X_UNIT) {
+                long delta = X_UNIT + published(rest) - published(h);
+                for (int failures = 0; ; failures = backoff(failures)) {
+                    long c = getState();
+                    // upgrade: ok if current is X already or the only user
+                    if (current != getExclusiveOwnerThread() && c != mine) {
+                        return false;
+                    }
+                    if (compareAndSetState(c, c + delta)) {
+                        rh.state = rest;
+                        setExclusiveOwnerThread(current);
+                        wroteExclusive();
+                        return true;
+                    }
+                }
+            }
+            long delta = published(rest + to) - published(h);
+            long conflicting = conflicts(to);
+            for (int failures = 0; ; failures = backoff(failures)) {
+                long c = getState();
+                if (current != getExclusiveOwnerThread() &&
+                    ((c & X_FIELD) != 0 || ((c - mine) & conflicting) != 0)) {
+                    return false;
+                }
+                long nextc = c + delta;
+                if (compareAndSetState(c, nextc)) {
+                    rh.state = rest + to;
+                    if ((to & IX_FIELD) != 0 && (h & IX_FIELD) == 0) {
+                        wroteIntention();
+                    }
+                    long dropped = published(h) - published(rest);
+                    if ((nextc & X_FIELD) == 0 && freed(nextc, dropped)) {
+                        signal();
+                    }
+                    else if (dropped != 0) {
+                        holdsDropped();
+                    }
+                    return true;
+                }
+            }
+        }
+        
+        @Override
+        protected boolean tryAcquire(long arg) {
+            Thread current = Thread.currentThread();
+            long c = getState();
+            if (c == 0) {
+                if (fairness != Fairness.BARGING &&
+                    peekHoldCounter().state == 0 && shouldBlock(arg)) {
+                    return false;
+                }
+            }
+            else {
+                long x = c & X_FIELD;
+                // (Note: if c != 0 and x == 0 then non-exclusive count != 0)
+                if (x == 0) {
+                    // Check non-exclusive counts are only for current.
+                    // i.e. are we upgrading?
+                    HoldCounter rh = peekHoldCounter();
+                    long group = c - (published(rh.state) - rh.striped);
+                    if ((group & NON_X_FIELDS) != 0) {
+                        // current thread is not only non-exclusive user
+                        return false;
+                    }
+                }
+                else if (current != getExclusiveOwnerThread()) {
+                    return false;
+                }
+            }
+            if (!compareAndSetState(c, c + X_UNIT))
+                return false;
+            setExclusiveOwnerThread(current);
+            wroteExclusive();
+            return true;
+        }
+        
+        @Override
+        protected boolean tryRelease(long arg) {
+            long nextc = getState() - arg;
+            if (Thread.currentThread() != getExclusiveOwnerThread()) {
+                throw new IllegalMonitorStateException();
+            }
+            if ((nextc & X_FIELD) == 0) {
+                setExclusiveOwnerThread(null);
+                setState(nextc);
+                return true;
+            }
+            else {
+                setState(nextc);
+                return false;
+            }
+        }
+
+        @Override
+        protected long tryAcquireShared(long arg) {
+            Thread current = Thread.currentThread();
+            // looked up without adding an entry, so that failed attempts
+            // (each spin is one) leave the table alone
+            HoldCounter rh = peekHoldCounter();
+            long h = rh.state;
+            long delta = published(h + arg) - published(h);
+            if (delta == 0) {
+                // re-entrant IS/IX: the shared state already shows this
+                // thread's intention, so only the local count changes
+                rh.state = h + arg;
+                return 1;
+            }
+            if (fairness != Fairness.BARGING && h == 0 &&
+                getExclusiveOwnerThread() != current && shouldBlock(arg)) {
+                forget(rh);
+                return -1;
+            }
+            long mine = published(h) - rh.striped;
+            long conflicting = conflicts(arg);
+            for (int failures = 0; ; failures = backoff(failures)) {
+                long c = getState();
+                // someone else already is X
+                if ((c & X_FIELD) != 0 &&
+                    getExclusiveOwnerThread() != current) {
+                    forget(rh);
+                    return -1;
+                }
+                // either no X or current is X
+                if (getExclusiveOwnerThread() == current) {
+                    if (updateState(c, arg, delta, rh)) {
+                        return 0;
+                    }
+                }
+                else if (((c - mine) & conflicting) != 0) {
+                    // a thread other than current is S (for IX) or IX (for
+                    // S), so queue until the last one leaves
+                    // (tryReleaseShared wakes us up)
+                    forget(rh);
+                    return -1;
+                }
+                else if (updateState(c, arg, delta, rh)) {
+                    return 1; // still return 1 because IS is always compatible
+                }
+            }
+        }
+        
+        // fields other threads must not hold for us to take units: IS is
+        // compatible with S, IX, IS; IX conflicts with S; S with IX; and
+        // SIX (S + IX) with both
+        static long conflicts(long units) {
+            long f = 0;
+            if ((units & S_FIELD) != 0) f |= IX_FIELD;
+            if ((units & IX_FIELD) != 0) f |= S_FIELD;
+            return f;
+        }
+        
+        // does h hold every mode in units?
+        static boolean holdsAll(long h, long units) {
+            return ((units & S_FIELD) == 0 || (h & S_FIELD) != 0)
+                && ((units & IX_FIELD) == 0 || (h & IX_FIELD) != 0)
+                && ((units & IS_FIELD) == 0 || (h & IS_FIELD) != 0);
+        }
+        
+        // has a field that delta was taken from dropped to zero in c?
+        static boolean freed(long c, long delta) {
+            return ((delta & S_FIELD) != 0 && (c & S_FIELD) == 0)
+                || ((delta & IX_FIELD) != 0 && (c & IX_FIELD) == 0)
+                || ((delta & IS_FIELD) != 0 && (c & IS_FIELD) == 0);
+        }
+        
+        private boolean updateState(long c, long arg, long delta, HoldCounter rh) {
+            if (compareAndSetState(c, c + delta)) {
+                if (rh == NO_HOLDS) {
+                    rh = holdCounter();
+                }
+                rh.state += arg;
+                if ((delta & IX_FIELD) != 0) {
+                    wroteIntention();
+                }
+                return true;
+            }
+            return false;
+        }
+        
+        @Override
+        protected boolean tryReleaseShared(long arg) {
+            if (arg == SIGNAL) {
+                return true;
+            }
+            HoldCounter rh = peekHoldCounter();
+            long h = rh.state;
+            if (!holdsAll(h, arg)) {
+                throw new IllegalMonitorStateException();
+            }
+            rh.state = h - arg;
+            long delta = published(h) - published(h - arg);
+            boolean signal = false;
+            long cell = delta & rh.striped;
+            if (cell != 0) {
+                // our last IS/IX hold, and it was published in a cell
+                rh.striped -= cell;
+                delta -= cell;
+                signal = releaseCell(cell);
+            }
+            forget(rh);
+            if (delta == 0) {
+                // still held re-entrantly, nothing to publish
+                return signal;
+            }
+            for (int failures = 0; ; failures = backoff(failures)) {
+                long c = getState();
+                long nextc = c - delta;
+                if (compareAndSetState(c, nextc)) {
+                    if ((nextc & X_FIELD) == 0) {
+                        return signal || freed(nextc, delta);
+                    }
+                    else {
+                        return signal;
+                    }
+                }
+            }
+        }
+        
+        // only StripedSync publishes holds in cells
+        boolean releaseCell(long units) {
+            throw new IllegalStateException();
+        }
+        
+    }
+    
+    /**
+     * A Sync whose IS/IX holds normally live in padded per-CPU cells, so
+     * intention traffic from different threads does not contend on the
+     * state word. An S or X acquisition first registers itself as a
+     * revoker, which sends new intentions through the state word, and then
+     * waits for the conflicting cells to drain. Cell intentions are taken
+     * by incrementing the cell and then checking there are no revokers,
+     * while S/X register and then sum the cells, so one always sees the
+     * other.
+     */
+    static final class StripedSync extends Sync {
+        
+        private static final long serialVersionUID = 1L;
+        
+        // longs per cell, keeps cells on separate cache lines
+        static final int STRIDE = 16;
+        
+        // cell layout: IX count in the high word, IS count in the low word,
+        // then (if versioned) the cell IX acquisitions so far, kept with
+        // the cell rather than in the shared intentions
+        static final long CELL_IX = 1L << 32;
+        static final long CELL_IS = 1L;
+        static final long CELL_IX_FIELD = 0xFFFFFFFF00000000L;
+        
+        final AtomicLongArray cells;
+        final int mask;
+        final AtomicInteger revokers = new AtomicInteger();
+        
+        StripedSync(Fairness f, boolean versioned) {
+            super(f, versioned);
+            int n = 1;
+            while (n < Runtime.getRuntime().availableProcessors()) {
+                n <<= 1;
+            }
+            cells = new AtomicLongArray(n * STRIDE);
+            mask = n - 1;
+        }
+        
+        private int cellIndex(Thread t) {
+            long h = t.getId() * 0x9E3779B97F4A7C15L;
+            return ((int) (h >>> 32) & mask) * STRIDE;
+        }
+        
+        static long cellUnits(long units) {
+            return ((units & IX_FIELD) != 0 ? CELL_IX : 0)
+                 + ((units & IS_FIELD) != 0 ? CELL_IS : 0);
+        }
+        
+        // true if no other thread has an intention in the cells that
+        // conflicts with unit (any for X, IX for S and SIX)
+        private boolean cellsClear(long unit) {
+            long sum = 0;
+            for (int i=0; i<cells.length(); i+=STRIDE) {
+                sum += cells.get(i);
+            }
+            long others = sum - cellUnits(peekHoldCounter().striped);
+            return (unit == X_UNIT) ? others == 0
+                                    : (others & CELL_IX_FIELD) == 0;
+        }
+        
+        @Override
+        boolean writersIn(boolean subtree) {
+            if (super.writersIn(subtree)) {
+                return true;
+            }
+            if (subtree) {
+                for (int i=0; i<cells.length(); i+=STRIDE) {
+                    if ((cells.get(i) & CELL_IX_FIELD) != 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        long intentionVersion() {
+            long v = intentions;
+            for (int i=0; i<cells.length(); i+=STRIDE) {
+                v += cells.get(i + 1);
+            }
+            return v;
+        }
+        
+        // S, SIX and X must see the cells, intentions need not
+        static boolean coarse(long unit) {
+            return (unit & (X_FIELD | S_FIELD)) != 0;
+        }
+        
+        @Override
+        void lock(long unit) {
+            if (coarse(unit)) {
+                revokers.getAndIncrement();
+            }
+            super.lock(unit);
+        }
+        
+        @Override
+        boolean tryLock(long unit) {
+            if (!coarse(unit)) {
+                return super.tryLock(unit);
+            }
+            revokers.getAndIncrement();
+            boolean acquired = false;
+            try {
+                acquired = super.tryLock(unit);
+            }
+            finally {
+                if (!acquired) {
+                    revokers.getAndDecrement();
+                }
+            }
+            return acquired;
+        }
+        
+        @Override
+        boolean tryLockNanos(long unit, long nanos)
+                throws InterruptedException {
+            if (!coarse(unit)) {
+                return super.tryLockNanos(unit, nanos);
+            }
+            revokers.getAndIncrement();
+            boolean acquired = false;
+            try {
+                acquired = super.tryLockNanos(unit, nanos);
+            }
+            finally {
+                if (!acquired) {
+                    revokers.getAndDecrement();
+                }
+            }
+            return acquired;
+        }
+        
+        @Override
+        void lockInterruptibly(long unit) throws InterruptedException {
+            if (!coarse(unit)) {
+                super.lockInterruptibly(unit);
+                return;
+            }
+            revokers.getAndIncrement();
+            boolean acquired = false;
+            try {
+                super.lockInterruptibly(unit);
+                acquired = true;
+            }
+            finally {
+                if (!acquired) {
+                    revokers.getAndDecrement();
+                }
+            }
+        }
+        
+        @Override
+        void unlock(long unit) {
+            super.unlock(unit);
+            if (coarse(unit)) {
+                revokers.getAndDecrement();
+            }
+        }
+        
+        @Override
+        protected boolean tryAcquire(long arg) {
+            return cellsClear(X_UNIT)
+                && super.tryAcquire(arg);
+        }
+        
+        @Override
+        protected long tryAcquireShared(long arg) {
+            Thread current = Thread.currentThread();
+            if (coarse(arg)) {
+                if (!cellsClear(S_UNIT)) {
+                    return -1;
+                }
+            }
+            else if (revokers.get() == 0) {
+                HoldCounter rh = peekHoldCounter();
+                long h = rh.state;
+                if ((h & fieldOf(arg)) == 0) {
+                    int i = cellIndex(current);
+                    long cu = cellUnits(arg);
+                    cells.getAndAdd(i, cu);
+                    if (revokers.get() == 0) {
+                        if (rh == NO_HOLDS) {
+                            rh = holdCounter();
+                        }
+                        rh.state = h + arg;
+                        rh.striped += arg;
+                        if (versioned && (cu & CELL_IX_FIELD) != 0) {
+                            cells.getAndAdd(i + 1, 1L);
+                        }
+                        return 1;
+                    }
+                    // an S or X acquisition started, so back out (waking
+                    // it if it already saw us) and use the state word
+                    cells.getAndAdd(i, -cu);
+                    signal();
+                }
+            }
+            return super.tryAcquireShared(arg);
+        }
+        
+        // the cells and revokers make in-place conversion awkward, so always
+        // take the new mode and then release the old one
+        @Override
+        boolean convertInPlace(long from, long to) {
+            return false;
+        }
+        
+        @Override
+        boolean releaseCell(long units) {
+            cells.getAndAdd(cellIndex(Thread.currentThread()), -cellUnits(units));
+            // wake any S/X acquisition waiting for the cells
+            return revokers.get() != 0;
+        }
+        
+    }
+    
+    /**
+     * A Sync whose fields count threads rather than acquisitions: like IS
+     * and IX, re-entrant S and X holds are only counted thread-locally.
+     * That leaves one bit for the X owner and 21 bits (2097151 threads)
+     * each for S, IX and IS, still in one word taken with a single CAS.
+     * Every increment, shared or thread-local, is checked for overflow.
+     */
+    static final class WideSync extends Sync {
+        
+        private static final long serialVersionUID = 1L;
+        
+        static final long W_X       = 1L << 63;
+        static final long W_S_UNIT  = 1L << 42;
+        static final long W_IX_UNIT = 1L << 21;
+        static final long W_IS_UNIT = 1L;
+        static final long W_MAX     = (1L << 21) - 1;
+        static final long W_S_FIELD  = W_MAX << 42;
+        static final long W_IX_FIELD = W_MAX << 21;
+        static final long W_IS_FIELD = W_MAX;
+        
+        WideSync(Fairness f, boolean versioned) {
+            super(f, versioned);
+        }
+        
+        // a thread's contribution to the state for its hold counts h
+        static long wide(long h) {
+            long w = 0;
+            if ((h & X_FIELD) != 0) w |= W_X;
+            if ((h & S_FIELD) != 0) w += W_S_UNIT;
+            if ((h & IX_FIELD) != 0) w += W_IX_UNIT;
+            if ((h & IS_FIELD) != 0) w += W_IS_UNIT;
+            return w;
+        }
+        
+        static long wideConflicts(long units) {
+            long f = 0;
+            if ((units & S_FIELD) != 0) f |= W_IX_FIELD;
+            if ((units & IX_FIELD) != 0) f |= W_S_FIELD;
+            return f;
+        }
+        
+        // would adding units to h, or delta to c, overflow a field?
+        static boolean full(long h, long units, long c, long delta) {
+            return ((units & X_FIELD) != 0 && (h & X_FIELD) == X_FIELD)
+                || ((units & S_FIELD) != 0 && (h & S_FIELD) == S_FIELD)
+                || ((units & IX_FIELD) != 0 && (h & IX_FIELD) == IX_FIELD)
+                || ((units & IS_FIELD) != 0 && (h & IS_FIELD) == IS_FIELD)
+                || ((delta & W_S_FIELD) != 0 && (c & W_S_FIELD) == W_S_FIELD)
+                || ((delta & W_IX_FIELD) != 0 && (c & W_IX_FIELD) == W_IX_FIELD)
+                || ((delta & W_IS_FIELD) != 0 && (c & W_IS_FIELD) == W_IS_FIELD);
+        }
+        
+        @Override
+        boolean writersIn(boolean subtree) {
+            long c = getState();
+            return (c & (subtree ? W_X | W_IX_FIELD : W_X)) != 0;
+        }
+        
+        static boolean wideFreed(long c, long delta) {
+            return ((delta & W_S_FIELD) != 0 && (c & W_S_FIELD) == 0)
+                || ((delta & W_IX_FIELD) != 0 && (c & W_IX_FIELD) == 0)
+                || ((delta & W_IS_FIELD) != 0 && (c & W_IS_FIELD) == 0);
+        }
+        
+        @Override
+        protected boolean tryAcquire(long arg) {
+            Thread current = Thread.currentThread();
+            HoldCounter rh = peekHoldCounter();
+            long h = rh.state;
+            if (full(h, arg, 0, 0)) {
+                throw new Error("Maximum lock count exceeded");
+            }
+            if (current == getExclusiveOwnerThread()) {
+                rh.state = h + arg;
+                return true;
+            }
+            // nobody but (perhaps) us may hold anything, i.e. are we
+            // upgrading?
+            long c = getState();
+            if ((fairness != Fairness.BARGING && h == 0 && shouldBlock(arg)) ||
+                c != wide(h) || !compareAndSetState(c, c | W_X)) {
+                forget(rh);
+                return false;
+            }
+            if (rh == NO_HOLDS) {
+                rh = holdCounter();
+            }
+            rh.state = h + arg;
+            setExclusiveOwnerThread(current);
+            wroteExclusive();
+            return true;
+        }
+        
+        @Override
+        protected boolean tryRelease(long arg) {
+            Thread current = Thread.currentThread();
+            if (current != getExclusiveOwnerThread()) {
+                throw new IllegalMonitorStateException();
+            }
+            HoldCounter rh = holdCounter();
+            rh.state -= arg;
+            if ((rh.state & X_FIELD) != 0) {
+                return false;
+            }
+            forget(rh);
+            setExclusiveOwnerThread(null);
+            setState(getState() & ~W_X);
+            return true;
+        }
+        
+        @Override
+        protected long tryAcquireShared(long arg) {
+            Thread current = Thread.currentThread();
+            HoldCounter rh = peekHoldCounter();
+            long h = rh.state;
+            long delta = wide(h + arg) - wide(h);
+            if (delta == 0) {
+                if (full(h, arg, 0, 0)) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                rh.state = h + arg;
+                return 1;
+            }
+            boolean x = current == getExclusiveOwnerThread();
+            if (fairness != Fairness.BARGING && h == 0 && !x &&
+                shouldBlock(arg)) {
+                forget(rh);
+                return -1;
+            }
+            long mine = wide(h);
+            long conflicting = wideConflicts(arg);
+            for (int failures = 0; ; failures = backoff(failures)) {
+                long c = getState();
+                if (!x && ((c & W_X) != 0 || ((c - mine) & conflicting) != 0)) {
+                    forget(rh);
+                    return -1;
+                }
+                if (full(h, arg, c, delta)) {
+                    forget(rh);
+                    throw new Error("Maximum lock count exceeded");
+                }
+                if (compareAndSetState(c, c + delta)) {
+                    if (rh == NO_HOLDS) {
+                        rh = holdCounter();
+                    }
+                    rh.state = h + arg;
+                    if ((delta & W_IX_FIELD) != 0) {
+                        wroteIntention();
+                    }
+                    return x ? 0 : 1;
+                }
+            }
+        }
+        
+        @Override
+        protected boolean tryReleaseShared(long arg) {
+            if (arg == SIGNAL) {
+                return true;
+            }
+            HoldCounter rh = peekHoldCounter();
+            long h = rh.state;
+            if (!holdsAll(h, arg)) {
+                throw new IllegalMonitorStateException();
+            }
+            rh.state = h - arg;
+            forget(rh);
+            long delta = wide(h) - wide(h - arg);
+            if (delta == 0) {
+                return false;
+            }
+            for (int failures = 0; ; failures = backoff(failures)) {
+                long c = getState();
+                long nextc = c - delta;
+                if (compareAndSetState(c, nextc)) {
+                    return (nextc & W_X) == 0 && wideFreed(nextc, delta);
+                }
+            }
+        }
+        
+        // X is only counted thread-locally, so the base class's in-place
+        // arithmetic doesn't apply; take the new mode, then release the old
+        @Override
+        boolean convertInPlace(long from, long to) {
+            return false;
+        }
+        
+    }
+    
+    /**
+     * A Sync that parks waiters in a queue of its own rather than AQS's
+     * (whose state word and owner it still uses). AQS only knows shared
+     * and exclusive waiters and wakes them from the head, so e.g. IS
+     * waiters queued behind an X stay parked while the lock is only IX.
+     * Here each node carries the unit its thread wants, and whoever
+     * changes the state walks the queue granting every waiter compatible
+     * with the holders, and, unless BARGING, with the waiters it would
+     * pass. The walker takes the state and hold counts on the waiter's
+     * behalf, so a woken waiter already holds the lock and never retries.
+     */
+    static final class QueuedSync extends Sync {
+        
+        private static final long serialVersionUID = 1L;
+        
+        // node status: CLAIMED while a walker is trying to grant it
+        static final int WAITING = 0, CLAIMED = 1, GRANTED = 2, CANCELLED = 3;
+        
+        static final class Node {
+            final long unit;
+            final Thread thread;
+            final HoldCounter rh;
+            // the thread's share of the state now, and what unit adds to it
+            final long mine, delta;
+            // did the thread already hold a mode here when it queued?
+            final boolean holding;
+            volatile int status;
+            volatile Node next;
+            Node batch; // next node claimed in the same walk
+            
+            Node(long u, Thread t, HoldCounter h) {
+                unit = u;
+                thread = t;
+                rh = h;
+                mine = published(h.state);
+                delta = (u == X_UNIT) ? X_UNIT : published(h.state + u) - mine;
+                holding = h.state != 0;
+            }
+        }
+        
+        // Nodes are appended by swapping the tail, MCS style, and only the
+        // walker unlinks them, never touching the next field of what may
+        // still be the tail except by CAS.
+        final Node head = new Node(0, null, NO_HOLDS);
+        volatile Node tail = head;
+        
+        // walk requests since the walker last finished
+        volatile int walks;
+        
+        // queued threads that already hold a mode here
+        volatile int holdingWaiters;
+        
+        private static final VarHandle TAIL, WALKS, HOLDING_WAITERS, STATUS, NEXT;
+        static {
+            try {
+                MethodHandles.Lookup l = MethodHandles.lookup();
+                TAIL = l.findVarHandle(QueuedSync.class, "tail", Node.class);
+                WALKS = l.findVarHandle(QueuedSync.class, "walks", int.class);
+                HOLDING_WAITERS = l.findVarHandle(QueuedSync.class, "holdingWaiters", int.class);
+                STATUS = l.findVarHandle(Node.class, "status", int.class);
+                NEXT = l.findVarHandle(Node.class, "next", Node.class);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+        
+        QueuedSync(Fairness f, boolean versioned) {
+            super(f, versioned);
+        }
+        
+        @Override
+        void lock(long unit) {
+            if (!spin(unit)) {
+                await(unit, false, false, 0L);
+            }
+        }
+        
+        @Override
+        boolean tryLockNanos(long unit, long nanos)
+                throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long deadline = System.nanoTime() + nanos;
+            if (spin(unit, true, deadline)) {
+                return true;
+            }
+            nanos = deadline - System.nanoTime();
+            if (nanos <= 0L) {
+                return false;
+            }
+            if (await(unit, true, true, nanos)) {
+                return true;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return false;
+        }
+        
+        @Override
+        void lockInterruptibly(long unit) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (!spin(unit) && !await(unit, true, false, 0L)) {
+                Thread.interrupted();
+                throw new InterruptedException();
+            }
+        }
+        
+        @Override
+        void unlock(long unit) {
+            boolean freed = (unit == X_UNIT) ? tryRelease(unit)
+                                             : tryReleaseShared(unit);
+            // a waiter that holds something here (an upgrader, say) may
+            // be let in by a release that doesn't empty any field
+            if ((freed || holdingWaiters != 0) && tail != head) {
+                signal();
+            }
+        }
+        
+        /**
+         * Queues the current thread for unit and parks until a walker
+         * grants it (true), or until it gives up on timeout or, if
+         * interruptible, interrupt (false, leaving the interrupt set).
+         */
+        private boolean await(long unit, boolean interruptible,
+                              boolean timed, long nanos) {
+            Thread current = Thread.currentThread();
+            // X is not in the hold counts, so only read them for it
+            HoldCounter rh = (unit == X_UNIT) ? peekHoldCounter()
+                                              : holdCounter();
+            Node node = new Node(unit, current, rh);
+            boolean holding = node.holding;
+            if (holding) {
+                HOLDING_WAITERS.getAndAdd(this, 1);
+            }
+            if (TRACK_WAITS) {
+                waiting(unit, interruptible);
+            }
+            Node prev = (Node) TAIL.getAndSet(this, node);
+            prev.next = node;
+            // the holders may have left before we were linked
+            signal();
+            long deadline = timed ? System.nanoTime() + nanos : 0L;
+            boolean interrupted = false;
+            while (node.status != GRANTED) {
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0L) {
+                        if (cancel(node)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    LockSupport.parkNanos(this, nanos);
+                }
+                else {
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    if (interruptible && cancel(node)) {
+                        break;
+                    }
+                }
+            }
+            if (holding) {
+                HOLDING_WAITERS.getAndAdd(this, -1);
+            }
+            if (TRACK_WAITS) {
+                doneWaiting();
+            }
+            if (interrupted) {
+                current.interrupt();
+            }
+            return node.status == GRANTED;
+        }
+        
+        // true if node was cancelled before a walker granted it
+        private boolean cancel(Node node) {
+            for (;;) {
+                int s = node.status;
+                if (s == GRANTED) {
+                    return false;
+                }
+                if (s == WAITING &&
+                    STATUS.compareAndSet(node, WAITING, CANCELLED)) {
+                    forget(node.rh);
+                    // we may have been holding back the waiters behind us
+                    signal();
+                    return true;
+                }
+                // CLAIMED: the walker is about to decide
+                Thread.onSpinWait();
+            }
+        }
+        
+        @Override
+        void holdsDropped() {
+            if (holdingWaiters != 0 && tail != head) {
+                signal();
+            }
+        }
+        
+        // Only one thread walks at a time. A request made while someone
+        // else walks is left for them: they walk again if the count moved.
+        @Override
+        void signal() {
+            if ((int) WALKS.getAndAdd(this, 1) != 0) {
+                return;
+            }
+            for (;;) {
+                int w = walks;
+                walk();
+                if (WALKS.compareAndSet(this, w, 0)) {
+                    return;
+                }
+            }
+        }
+        
+        // Grants every waiter it can in one pass: claims the nodes whose
+        // units are compatible with the holders and with the nodes claimed
+        // before them, takes all their units with one CAS, and only then
+        // wakes them. A crowd of readers behind a writer so goes in at
+        // once, rather than each waking the next and CASing again. Nodes
+        // done with are unlinked on the way.
+        private void walk() {
+            for (int failures = 0; ; failures = backoff(failures)) {
+                long c = getState();
+                long delta = 0;   // the units of the claimed nodes
+                long skipped = 0; // units of the live waiters passed over
+                Node first = null, last = null;
+                Node p = head;
+                Node n;
+                while ((n = p.next) != null) {
+                    int s = n.status;
+                    if (s == WAITING) {
+                        // as with shouldBlock, holders never wait for the
+                        // queue, whose waiters may be waiting for them
+                        if ((n.holding || !overtakes(n.unit, skipped)) &&
+                            claim(n, c + delta)) {
+                            delta += n.delta;
+                            if (last == null) {
+                                first = n;
+                            }
+                            else {
+                                last.batch = n;
+                            }
+                            last = n;
+                        }
+                        else if (n.status == WAITING) {
+                            skipped |= n.unit;
+                        }
+                    }
+                    if (s == WAITING) {
+                        p = n;
+                        continue;
+                    }
+                    Node next = n.next;
+                    if (next != null) {
+                        p.next = next;
+                    }
+                    else {
+                        // n may be the tail: unlink it only if nobody appends
+                        if (TAIL.compareAndSet(this, n, p)) {
+                            NEXT.compareAndSet(p, n, null);
+                        }
+                        break;
+                    }
+                }
+                if (first == null) {
+                    return;
+                }
+                last.batch = null;
+                if (compareAndSetState(c, c + delta)) {
+                    grant(first);
+                    return;
+                }
+                // the state moved under us, so put them back and look again
+                for (n = first; n != null; n = n.batch) {
+                    n.status = WAITING;
+                }
+            }
+        }
+        
+        // would taking unit pass over a waiter the fairness policy says
+        // should go first?
+        private boolean overtakes(long unit, long waiting) {
+            switch (fairness) {
+            case FIFO:
+                return waiting != 0;
+            case PHASE_FAIR:
+                return (waiting & X_UNIT) != 0
+                    || (unit == X_UNIT && waiting != 0)
+                    || (waiting & conflicts(unit)) != 0;
+            default:
+                return false;
+            }
+        }
+        
+        @Override
+        boolean hasWaiters() {
+            for (Node n = head.next; n != null; n = n.next) {
+                if (n.status < GRANTED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        // the fairness policy, applied to the waiters still queued
+        @Override
+        boolean shouldBlock(long unit) {
+            long waiting = 0;
+            for (Node n = head.next; n != null; n = n.next) {
+                if (n.status < GRANTED) {
+                    waiting |= n.unit;
+                }
+            }
+            return overtakes(unit, waiting);
+        }
+        
+        // claims n if its unit is compatible with state c, as tryAcquire or
+        // tryAcquireShared would decide for its thread
+        private boolean claim(Node n, long c) {
+            long conflicting = (n.unit == X_UNIT) ? NON_X_FIELDS
+                                                  : conflicts(n.unit);
+            if ((c & X_FIELD) != 0 || ((c - n.mine) & conflicting) != 0) {
+                return false;
+            }
+            return STATUS.compareAndSet(n, WAITING, CLAIMED);
+        }
+        
+        // finishes the claimed nodes from first on, whose units are in the
+        // state already, and then wakes them all
+        private void grant(Node first) {
+            for (Node n = first; n != null; n = n.batch) {
+                if (n.unit == X_UNIT) {
+                    setExclusiveOwnerThread(n.thread);
+                    wroteExclusive();
+                }
+                else {
+                    n.rh.state += n.unit;
+                    if ((n.delta & IX_FIELD) != 0) {
+                        wroteIntention();
+                    }
+                }
+                n.status = GRANTED;
+            }
+            for (Node n = first; n != null; n = n.batch) {
+                LockSupport.unpark(n.thread);
+            }
+        }
+        
+    }
+    
+    public boolean lockRead() {
+        acquireAncestors(IS_UNIT);
+        sync.lock(S_UNIT);
+        return true;
+    }
+    
+    public boolean lockWrite() {
+        acquireAncestors(IX_UNIT);
+        sync.lock(X_UNIT);
+        return true;
+    }
+    
+    public boolean lockIntentionRead() {
+        acquireAncestors(IS_UNIT);
+        sync.lock(IS_UNIT);
+        return true;
+    }
+    
+    public boolean lockIntentionWrite() {
+        acquireAncestors(IX_UNIT);
+        sync.lock(IX_UNIT);
+        return true;
+    }
+    
+    public boolean lockSharedIntentionWrite() {
+        acquireAncestors(IX_UNIT);
+        sync.lock(SIX_UNIT);
+        return true;
+    }
+ 
+    public void unlockRead() {
+        sync.unlock(S_UNIT);
+        releaseAncestors(IS_UNIT, ancestors.length);
+    }
     
     public void unlockWrite() {
-        sync.release(X_UNIT);
-        if (owner != null) {
-            owner.unlockIntentionWrite();
-        }        
+        sync.unlock(X_UNIT);
+        releaseAncestors(IX_UNIT, ancestors.length);
     }
     
     public void unlockIntentionRead() {
-        sync.releaseShared(IS_UNIT);
-        if (owner != null) {
-            owner.unlockIntentionRead();
-        }        
+        sync.unlock(IS_UNIT);
+        releaseAncestors(IS_UNIT, ancestors.length);
     }
  
     public void unlockIntentionWrite() {
-        sync.releaseShared(IX_UNIT);
-        if (owner != null) {
-            owner.unlockIntentionWrite();
-        }        
+        sync.unlock(IX_UNIT);
+        releaseAncestors(IX_UNIT, ancestors.length);
+    }
+    
+    public void unlockSharedIntentionWrite() {
+        sync.unlock(SIX_UNIT);
+        releaseAncestors(IX_UNIT, ancestors.length);
+    }
+    
+    public boolean tryLockRead() {
+        return tryAcquirePath(S_UNIT);
+    }
+
+    public boolean tryLockWrite() {
+        return tryAcquirePath(X_UNIT);
+    }
+
+    public boolean tryLockIntentionRead() {
+        return tryAcquirePath(IS_UNIT);
+    }
+
+    public boolean tryLockIntentionWrite() {
+        return tryAcquirePath(IX_UNIT);
+    }
+
+    public boolean tryLockSharedIntentionWrite() {
+        return tryAcquirePath(SIX_UNIT);
+    }
+
+    public boolean tryLockRead(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return tryAcquirePathUntil(S_UNIT, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public boolean tryLockWrite(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return tryAcquirePathUntil(X_UNIT, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public boolean tryLockIntentionRead(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return tryAcquirePathUntil(IS_UNIT, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public boolean tryLockIntentionWrite(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return tryAcquirePathUntil(IX_UNIT, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public boolean tryLockSharedIntentionWrite(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return tryAcquirePathUntil(SIX_UNIT, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public void lockReadInterruptibly() throws InterruptedException {
+        acquirePathInterruptibly(S_UNIT);
+    }
+
+    public void lockWriteInterruptibly() throws InterruptedException {
+        acquirePathInterruptibly(X_UNIT);
+    }
+
+    public void lockIntentionReadInterruptibly() throws InterruptedException {
+        acquirePathInterruptibly(IS_UNIT);
+    }
+
+    public void lockIntentionWriteInterruptibly() throws InterruptedException {
+        acquirePathInterruptibly(IX_UNIT);
+    }
+
+    public void lockSharedIntentionWriteInterruptibly() throws InterruptedException {
+        acquirePathInterruptibly(SIX_UNIT);
+    }
+
+    /**
+     * Acquires mode on this lock, and the matching intention mode on every
+     * ancestor, before deadline (a System.nanoTime() value). The path is
+     * either taken as a whole or not at all: if any level times out or the
+     * thread is interrupted, the ancestors already taken are released.
+     */
+    public boolean tryLockPath(Mode mode, long deadline)
+            throws InterruptedException {
+        return tryAcquirePathUntil(mode.unit, deadline);
+    }
+
+    public void unlockPath(Mode mode) {
+        releasePath(mode.unit);
+    }
+    
+    /**
+     * Locks this lock's subtree in mode (S or X) at the coarsest level of
+     * its path that is cold, i.e. where threads have seldom had to block
+     * lately, taking the matching intention on the levels above that. So
+     * a quiet hierarchy is locked with one CAS at the root, and a busy
+     * one down at this lock. Returns the lock taken in mode, this or an
+     * ancestor, which the caller releases with its unlockPath(mode).
+     */
+    public MultiLock lockAdaptive(Mode mode) {
+        if (mode != Mode.S && mode != Mode.X) {
+            throw new IllegalArgumentException("lockAdaptive takes S or X, not " + mode);
+        }
+        long intent = intentionFor(mode.unit);
+        MultiLock[] a = ancestors;
+        for (int i=0; i<a.length; i++) {
+            if (a[i].sync.cold()) {
+                a[i].sync.lock(mode.unit);
+                return a[i];
+            }
+            a[i].sync.lock(intent);
+        }
+        sync.lock(mode.unit);
+        return this;
+    }
+    
+    /**
+     * Acquires mode on each of locks, and the matching intention mode on
+     * all of their ancestors, taking an ancestor shared by several of them
+     * only once. Everything is locked in one global order, creation order,
+     * which puts every ancestor before its descendants, so lockAll callers
+     * can't deadlock with each other or with threads locking single paths.
+     */
+    public static void lockAll(Mode mode, MultiLock... locks) {
+        long intent = intentionFor(mode.unit);
+        for (MultiLock l = after(0, locks); l != null; l = after(l.sync.id, locks)) {
+            if (l.in(locks)) {
+                l.sync.lock(mode.unit);
+            }
+            if (l.above(locks)) {
+                l.sync.lock(intent);
+            }
+        }
+    }
+    
+    /**
+     * Releases what lockAll(mode, locks) acquired, in reverse order.
+     */
+    public static void unlockAll(Mode mode, MultiLock... locks) {
+        long intent = intentionFor(mode.unit);
+        for (MultiLock l = before(Long.MAX_VALUE, locks); l != null; l = before(l.sync.id, locks)) {
+            if (l.above(locks)) {
+                l.sync.unlock(intent);
+            }
+            if (l.in(locks)) {
+                l.sync.unlock(mode.unit);
+            }
+        }
     }
     
+    // Of locks and their ancestors, the one with the least id above id.
+    // Sync ids are handed out in creation order, so they grow down every
+    // path, and a path's first id above id is its least.
+    private static MultiLock after(long id, MultiLock[] locks) {
+        MultiLock next = null;
+        for (MultiLock l : locks) {
+            MultiLock[] a = l.ancestors;
+            for (int k=0; k<=a.length; k++) {
+                MultiLock p = (k < a.length) ? a[k] : l;
+                if (p.sync.id > id) {
+                    if (next == null || p.sync.id < next.sync.id) {
+                        next = p;
+                    }
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+    
+    // of locks and their ancestors, the one with the greatest id below id
+    private static MultiLock before(long id, MultiLock[] locks) {
+        MultiLock prev = null;
+        for (MultiLock l : locks) {
+            MultiLock[] a = l.ancestors;
+            for (int k=a.length; k>=0; k--) {
+                MultiLock p = (k < a.length) ? a[k] : l;
+                if (p.sync.id < id) {
+                    if (prev == null || p.sync.id > prev.sync.id) {
+                        prev = p;
+                    }
+                    break;
+                }
+            }
+        }
+        return prev;
+    }
+    
+    // is this one of locks?
+    private boolean in(MultiLock[] locks) {
+        for (MultiLock l : locks) {
+            if (l == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // is this an ancestor of one of locks?
+    private boolean above(MultiLock[] locks) {
+        int depth = ancestors.length;
+        for (MultiLock l : locks) {
+            if (l.ancestors.length > depth && l.ancestors[depth] == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    
+
+    /**
+     * Converts the current thread's hold of from on this lock into to, and
+     * the intention modes it holds on the ancestors to match (IS to IX up
+     * the chain for an upgrade, IX to IS after a downgrade), without ever
+     * releasing the path. Each level normally takes a single state update.
+     * If to conflicts with other threads' holds it waits for them while
+     * still holding from, so two threads upgrading S to X on the same lock
+     * deadlock; use tryConvert for that. Such a wait parks outside the
+     * lock's queue and is woken by every release on the lock, so it
+     * retries once per release: no lag behind the last conflicting
+     * holder, but a lock with many holders may wake it many times first.
+     */
+    public void convert(Mode from, Mode to) {
+        long fromIntent = intentionFor(from.unit);
+        long toIntent = intentionFor(to.unit);
+        MultiLock[] a = ancestors;
+        if (fromIntent != toIntent && toIntent == IX_UNIT) {
+            for (int i=0; i<a.length; i++) {
+                a[i].sync.convert(fromIntent, toIntent);
+            }
+        }
+        sync.convert(from.unit, to.unit);
+        if (fromIntent != toIntent && toIntent == IS_UNIT) {
+            for (int i=a.length-1; i>=0; i--) {
+                a[i].sync.convert(fromIntent, toIntent);
+            }
+        }
+    }
+
+    /**
+     * As convert, but fails rather than waiting, in which case the current
+     * thread still holds from and the original ancestor intentions.
+     */
+    public boolean tryConvert(Mode from, Mode to) {
+        long fromIntent = intentionFor(from.unit);
+        long toIntent = intentionFor(to.unit);
+        MultiLock[] a = ancestors;
+        int converted = 0;
+        if (fromIntent != toIntent && toIntent == IX_UNIT) {
+            while (converted < a.length &&
+                   a[converted].sync.tryConvert(fromIntent, toIntent)) {
+                converted++;
+            }
+            if (converted < a.length || !sync.tryConvert(from.unit, to.unit)) {
+                // IX back to IS never has to wait
+                for (int i=converted-1; i>=0; i--) {
+                    a[i].sync.convert(toIntent, fromIntent);
+                }
+                return false;
+            }
+            return true;
+        }
+        if (!sync.tryConvert(from.unit, to.unit)) {
+            return false;
+        }
+        if (fromIntent != toIntent) {
+            for (int i=a.length-1; i>=0; i--) {
+                a[i].sync.convert(fromIntent, toIntent);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts reading this lock's subtree without locking it, StampedLock
+     * style. Returns zero if a writer may be active (X or IX here, or X on
+     * an ancestor), or if this lock or an ancestor wasn't made optimistic,
+     * otherwise a stamp to pass to validate once done reading. Writes
+     * nothing shared. If validation fails, the data read may be
+     * inconsistent, and the read should be redone under lockRead.
+     */
+    public long tryOptimisticRead() {
+        if (!sync.versioned) {
+            return 0;
+        }
+        long v = versions();
+        MultiLock[] a = ancestors;
+        for (int i=0; i<a.length; i++) {
+            if (!a[i].sync.versioned || a[i].sync.writersIn(false)) {
+                return 0;
+            }
+        }
+        return sync.writersIn(true) ? 0 : v + 1;
+    }
+
+    /**
+     * True if no X or IX was taken in this subtree, nor X on its path,
+     * since stamp was returned by tryOptimisticRead.
+     */
+    public boolean validate(long stamp) {
+        VarHandle.acquireFence();
+        return stamp != 0 && versions() + 1 == stamp;
+    }
+
+    // only ever grows, and any write that could affect this subtree
+    // changes it
+    private long versions() {
+        long v = sync.intentionVersion() + sync.exclusives;
+        MultiLock[] a = ancestors;
+        for (int i=0; i<a.length; i++) {
+            v += a[i].sync.exclusives;
+        }
+        return v;
+    }
+
+    public void upgradeReadToWrite() {
+        convert(Mode.S, Mode.X);
+    }
+
+    public void downgradeWriteToRead() {
+        convert(Mode.X, Mode.S);
+    }
+
+    public void upgradeIntentionReadToWrite() {
+        convert(Mode.IS, Mode.IX);
+    }
+
+    public void upgradeReadToSharedIntentionWrite() {
+        convert(Mode.S, Mode.SIX);
+    }
+
+    // ancestors followed by this, shared by all children of this lock
+    synchronized MultiLock[] lineage() {
+        if (lineage == null) {
+            MultiLock[] l = new MultiLock[ancestors.length + 1];
+            System.arraycopy(ancestors, 0, l, 0, ancestors.length);
+            l[ancestors.length] = this;
+            lineage = l;
+        }
+        return lineage;
+    }
+
+    // intention mode that must be held on the ancestors to hold unit here
+    static long intentionFor(long unit) {
+        return (unit == S_UNIT || unit == IS_UNIT) ? IS_UNIT : IX_UNIT;
+    }
+
+    private void acquireAncestors(long unit) {
+        MultiLock[] a = ancestors;
+        for (int i=0; i<a.length; i++) {
+            a[i].sync.lock(unit);
+        }
+    }
+
+    // releases the first n ancestors, leaf-most first
+    private void releaseAncestors(long unit, int n) {
+        MultiLock[] a = ancestors;
+        for (int i=n-1; i>=0; i--) {
+            a[i].sync.unlock(unit);
+        }
+    }
+
+    void acquirePath(long unit) {
+        acquireAncestors(intentionFor(unit));
+        sync.lock(unit);
+    }
+
+    boolean tryAcquirePath(long unit) {
+        long ownerUnit = intentionFor(unit);
+        MultiLock[] a = ancestors;
+        for (int i=0; i<a.length; i++) {
+            if (!a[i].sync.tryLock(ownerUnit)) {
+                releaseAncestors(ownerUnit, i);
+                return false;
+            }
+        }
+        boolean acquired = sync.tryLock(unit);
+        if (!acquired) {
+            releaseAncestors(ownerUnit, a.length);
+        }
+        return acquired;
+    }
+
+    // deadline is in System.nanoTime() terms and is shared by the whole path
+    boolean tryAcquirePathUntil(long unit, long deadline)
+            throws InterruptedException {
+        long ownerUnit = intentionFor(unit);
+        MultiLock[] a = ancestors;
+        int held = 0;
+        boolean acquired = false;
+        try {
+            for (; held<a.length; held++) {
+                long nanos = deadline - System.nanoTime();
+                if (!a[held].sync.tryLockNanos(ownerUnit, nanos)) {
+                    return false;
+                }
+            }
+            acquired = sync.tryLockNanos(unit, deadline - System.nanoTime());
+        }
+        finally {
+            if (!acquired) {
+                releaseAncestors(ownerUnit, held);
+            }
+        }
+        return acquired;
+    }
+
+    void acquirePathInterruptibly(long unit) throws InterruptedException {
+        long ownerUnit = intentionFor(unit);
+        MultiLock[] a = ancestors;
+        int held = 0;
+        boolean acquired = false;
+        try {
+            for (; held<a.length; held++) {
+                a[held].sync.lockInterruptibly(ownerUnit);
+            }
+            sync.lockInterruptibly(unit);
+            acquired = true;
+        }
+        finally {
+            if (!acquired) {
+                releaseAncestors(ownerUnit, held);
+            }
+        }
+    }
+
+    void releasePath(long unit) {
+        sync.unlock(unit);
+        releaseAncestors(intentionFor(unit), ancestors.length);
+    }
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package multilock;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import static multilock.MultiLock.*;
+
+/**
+ * A leaf lock with no wait queue of its own: one state word, in the
+ * MultiLock layout, whose top X bit says threads may be parked on it in
+ * the global ParkingLot. Meant for fine-grained locks on large object
+ * graphs, where per-lock queue heads and tails are pure overhead.
+ *
+ * The state only counts acquisitions, so X is not re-entrant, and a
+ * thread must not ask for a mode that conflicts with one it already holds
+ * here. Taking a mode takes the matching intention on the owner's path,
+ * as for MultiLock.
+ */
+public class ParkedMultiLock extends LeafMultiLock {
+
+    private static final VarHandle STATE;
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(
+                    ParkedMultiLock.class, "state", long.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long state;
+
+    // clears WAITERS once the parked threads are off the queue
+    static final ParkingLot.Callback CLEAR_WAITERS = new ParkingLot.Callback() {
+        public void unparked(Object key, int count) {
+            ParkedMultiLock l = (ParkedMultiLock) key;
+            long s;
+            do {
+                s = l.state;
+            } while (!STATE.compareAndSet(l, s, s & ~WAITERS));
+        }
+    };
+
+    public ParkedMultiLock(MultiLock o) {
+        super(o);
+    }
+
+    boolean tryAcquire(long unit) {
+        for (;;) {
+            long s = state;
+            if (!compatible(s, unit)) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, s, s + unit)) {
+                return true;
+            }
+        }
+    }
+
+    void acquire(final long unit) {
+        while (!tryAcquire(unit)) {
+            ParkingLot.park(this, new ParkingLot.Validation() {
+                public boolean shouldPark() {
+                    for (;;) {
+                        long s = state;
+                        if (compatible(s, unit)) {
+                            return false;
+                        }
+                        if ((s & WAITERS) != 0 ||
+                            STATE.compareAndSet(ParkedMultiLock.this, s, s | WAITERS)) {
+                            return true;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    void release(long unit) {
+        for (;;) {
+            long s = state;
+            if (!holds(s, unit)) {
+                throw new IllegalMonitorStateException();
+            }
+            if (STATE.compareAndSet(this, s, s - unit)) {
+                if ((s & WAITERS) != 0) {
+                    ParkingLot.unparkAll(this, CLEAR_WAITERS);
+                }
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package multilock;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wait queues shared by all locks, in the style of WebKit's ParkingLot. A
+ * thread parks on a key (the lock) in one of a fixed set of buckets chosen
+ * by the key's identity hash, so a lock needs no queue of its own, only a
+ * bit saying someone may be parked on it. The lock's own check-and-set of
+ * that bit runs under the bucket's monitor (see Validation), as does the
+ * clearing callback on unpark, which is what makes a wake-up impossible
+ * to miss.
+ */
+final class ParkingLot {
+
+    // decides, under the bucket lock, whether the caller still has to wait
+    interface Validation {
+        boolean shouldPark();
+    }
+    
+    // run under the bucket lock once key's waiters are off the queue
+    interface Callback {
+        void unparked(Object key, int count);
+    }
+
+    static final class Waiter {
+        final Object key;
+        final Thread thread = Thread.currentThread();
+        Waiter next;
+        volatile boolean woken;
+
+        Waiter(Object k) {
+            key = k;
+        }
+    }
+
+    static final class Bucket {
+        Waiter head, tail;
+        // keep neighbouring buckets off each other's cache line
+        long p0, p1, p2, p3, p4, p5, p6;
+    }
+
+    static final Bucket[] buckets;
+    static {
+        int n = 64;
+        while (n < 4 * Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        buckets = new Bucket[n];
+        for (int i=0; i<n; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    private ParkingLot() {}
+
+    static Bucket bucketFor(Object key) {
+        int h = System.identityHashCode(key) * 0x9E3779B9;
+        return buckets[(h >>> 16) & (buckets.length - 1)];
+    }
+
+    /**
+     * Parks the current thread on key if v says so, until unparkAll(key).
+     * Returns false without parking otherwise.
+     */
+    static boolean park(Object key, Validation v) {
+        Bucket b = bucketFor(key);
+        Waiter w;
+        synchronized (b) {
+            if (!v.shouldPark()) {
+                return false;
+            }
+            w = new Waiter(key);
+            if (b.tail == null) {
+                b.head = w;
+            }
+            else {
+                b.tail.next = w;
+            }
+            b.tail = w;
+        }
+        while (!w.woken) {
+            LockSupport.park(key);
+        }
+        return true;
+    }
+
+    /**
+     * Wakes every thread parked on key, calling c under the bucket lock
+     * once they have been taken off the queue. Returns how many were woken.
+     */
+    static int unparkAll(Object key, Callback c) {
+        Bucket b = bucketFor(key);
+        Waiter woken = null;
+        int n = 0;
+        synchronized (b) {
+            Waiter prev = null;
+            for (Waiter w = b.head; w != null; ) {
+                Waiter next = w.next;
+                if (w.key == key) {
+                    if (prev == null) {
+                        b.head = next;
+                    }
+                    else {
+                        prev.next = next;
+                    }
+                    if (b.tail == w) {
+                        b.tail = prev;
+                    }
+                    w.next = woken;
+                    woken = w;
+                    n++;
+                }
+                else {
+                    prev = w;
+                }
+                w = next;
+            }
+            c.unparked(key, n);
+        }
+        while (woken != null) {
+            Waiter next = woken.next;
+            Thread t = woken.thread;
+            woken.woken = true;
+            LockSupport.unpark(t);
+            woken = next;
+        }
+        return n;
+    }
+
+}
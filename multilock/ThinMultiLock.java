@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package multilock;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static multilock.MultiLock.*;
+
+/**
+ * A leaf lock for the many rarely-contended objects at the bottom of a
+ * hierarchy (accounts rather than branches). Where a MultiLock carries an
+ * AQS, ThreadLocal-backed hold counts and Lock views, this is one state
+ * word, the owner, the X holder and a monitor that is only allocated
+ * ("inflated") once a thread has to block, and dropped again when the
+ * lock goes idle.
+ *
+ * The state counts acquisitions in the MultiLock layout, with the top bit
+ * of the X field marking that threads are parked on the monitor. As only
+ * the X holder is known, a thread must not ask for a mode that conflicts
+ * with one it already holds here (say S while holding IX) unless it is X,
+ * and conversions are not supported. Taking a mode takes the matching
+ * intention on the owner's path, as for MultiLock.
+ */
+public class ThinMultiLock extends LeafMultiLock {
+
+    private static final VarHandle STATE;
+    private static final VarHandle MONITOR;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            STATE = l.findVarHandle(ThinMultiLock.class, "state", long.class);
+            MONITOR = l.findVarHandle(ThinMultiLock.class, "monitor", Monitor.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long state;
+    private volatile Monitor monitor;
+    private Thread exclusiveOwner; // only read by the thread itself
+
+    static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        Waiter next;
+        volatile boolean woken;
+    }
+
+    // the inflated part: a stack of parked threads, all woken together
+    static final class Monitor {
+        final AtomicReference<Waiter> waiters = new AtomicReference<Waiter>();
+
+        void push(Waiter w) {
+            Waiter h;
+            do {
+                h = waiters.get();
+                w.next = h;
+            } while (!waiters.compareAndSet(h, w));
+        }
+
+        void wakeAll() {
+            for (Waiter w = waiters.getAndSet(null); w != null; w = w.next) {
+                w.woken = true;
+                LockSupport.unpark(w.thread);
+            }
+        }
+    }
+
+    public ThinMultiLock(MultiLock o) {
+        super(o);
+    }
+
+    // is unit compatible with what other threads hold in s?
+    private boolean compatible(long s, long unit, Thread current) {
+        return exclusiveOwner == current || compatible(s, unit);
+    }
+
+    boolean tryAcquire(long unit) {
+        return tryAcquire(unit, Thread.currentThread());
+    }
+
+    private boolean tryAcquire(long unit, Thread current) {
+        for (;;) {
+            long s = state;
+            if (!compatible(s, unit, current)) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, s, s + unit)) {
+                if (unit == X_UNIT) {
+                    exclusiveOwner = current;
+                }
+                return true;
+            }
+        }
+    }
+
+    void acquire(long unit) {
+        Thread current = Thread.currentThread();
+        while (!tryAcquire(unit, current)) {
+            Monitor m = monitor;
+            if (m == null) {
+                m = new Monitor();
+                if (!MONITOR.compareAndSet(this, null, m)) {
+                    continue;
+                }
+            }
+            Waiter w = new Waiter();
+            m.push(w);
+            // releasers must see the bit, and it must be set while we are
+            // still blocked, or nobody may wake us
+            long s = state;
+            if (compatible(s, unit, current)) {
+                continue;
+            }
+            if ((s & WAITERS) == 0 &&
+                !STATE.compareAndSet(this, s, s | WAITERS)) {
+                continue;
+            }
+            // the releaser that cleared the bit may have deflated m
+            if (monitor != m) {
+                continue;
+            }
+            while (!w.woken) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    void release(long unit) {
+        if (unit == X_UNIT && exclusiveOwner != Thread.currentThread()) {
+            throw new IllegalMonitorStateException();
+        }
+        for (;;) {
+            long s = state;
+            if (!holds(s, unit)) {
+                throw new IllegalMonitorStateException();
+            }
+            long nextc = (s - unit) & ~WAITERS;
+            boolean lastX = unit == X_UNIT && (nextc & LEAF_X_FIELD) == 0;
+            if (lastX) {
+                exclusiveOwner = null;
+            }
+            if (STATE.compareAndSet(this, s, nextc)) {
+                Monitor m;
+                if ((s & WAITERS) != 0 && (m = monitor) != null) {
+                    if (nextc == 0) {
+                        // idle, deflate
+                        MONITOR.compareAndSet(this, m, null);
+                    }
+                    m.wakeAll();
+                }
+                return;
+            }
+            if (lastX) {
+                exclusiveOwner = Thread.currentThread();
+            }
+        }
+    }
+
+
+    // has the monitor been inflated (for tests and benchmarks)?
+    boolean isInflated() {
+        return monitor != null;
+    }
+
+}
@@ -31,8 +31,21 @@ import java.util.concurrent.locks.*;
 import multilock.MultiLock;
 
 public abstract class Lockable {
-    public MultiLock mlock = new MultiLock(null);
+    public MultiLock mlock;
     public ReentrantReadWriteLock rwlock = new ReentrantReadWriteLock();
     public Lock rlock = rwlock.readLock();
     public Lock wlock = rwlock.writeLock();
+
+    public Lockable() {
+        this(null);
+    }
+
+    /**
+     * Gives this a MultiLock owned by owner's, so that locking it also
+     * takes the intentions on owner and everything above it. A null
+     * owner gives a root lock, as the no-arg constructor does.
+     */
+    public Lockable(Lockable owner) {
+        mlock = new MultiLock(owner == null ? null : owner.mlock);
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.adaptive;
+
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Mode;
+
+/**
+ * Deposits into a bank whose hot spot moves: HOT_PCT of the deposits go
+ * to one branch, which changes every PHASE_MILLIS. Compares locking the
+ * whole bank (coarse, one CAS), locking the account's path (fine), and
+ * MultiLock.lockAdaptive, which picks between the two (and the branch in
+ * between) from how much threads have had to block at each level. For
+ * adaptive runs it also reports how many deposits locked the whole bank:
+ * a bank made fine-grained stops blocking and cools, so it is taken
+ * coarsely again now and then, every few milliseconds.
+ */
+public class HotSpotTest {
+
+    public static final int NUM_BRANCHES = 8;
+    public static final int NUM_ACCTS_PER_BRANCH = 16;
+    public static final int HOT_PCT = 90;
+    public static final long PHASE_MILLIS = 50;
+
+    static final String[] KINDS = { "coarse", "fine", "adaptive" };
+
+    final MultiLock bank = new MultiLock(null);
+    final MultiLock[][] accounts = new MultiLock[NUM_BRANCHES][NUM_ACCTS_PER_BRANCH];
+    final long[][] balances = new long[NUM_BRANCHES][NUM_ACCTS_PER_BRANCH];
+    final long start = System.currentTimeMillis();
+    // adaptive deposits that locked the whole bank
+    final LongAdder atBank = new LongAdder();
+
+    public HotSpotTest() {
+        for (int i=0; i<NUM_BRANCHES; i++) {
+            MultiLock branch = new MultiLock(bank);
+            for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+                accounts[i][j] = new MultiLock(branch);
+            }
+        }
+    }
+
+    public void deposit(int kind, Random r) {
+        int hot = (int) ((System.currentTimeMillis() - start) / PHASE_MILLIS % NUM_BRANCHES);
+        int i = (r.nextInt(100) < HOT_PCT) ? hot : r.nextInt(NUM_BRANCHES);
+        int j = r.nextInt(NUM_ACCTS_PER_BRANCH);
+        MultiLock acct = accounts[i][j];
+        switch (kind) {
+        case 0:
+            bank.lockWrite();
+            balances[i][j]++;
+            bank.unlockWrite();
+            break;
+        case 1:
+            acct.lockWrite();
+            balances[i][j]++;
+            acct.unlockWrite();
+            break;
+        default:
+            MultiLock held = acct.lockAdaptive(Mode.X);
+            balances[i][j]++;
+            held.unlockPath(Mode.X);
+            if (held == bank) {
+                atBank.increment();
+            }
+        }
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (long[] branch : balances) {
+            for (long b : branch) {
+                sum += b;
+            }
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int NUM_OPS = 1000000;
+
+        for (int k=0; k<KINDS.length; k++) {
+            final int kind = k;
+            System.out.println("------------------------");
+            System.out.println(KINDS[kind]);
+
+            for (int ts=1; ts<=maxThreads; ts*=2) {
+                final int NUM_THREADS = ts;
+                final HotSpotTest t = new HotSpotTest();
+                Thread[] threads = new Thread[NUM_THREADS];
+                long totalOps = (long) NUM_THREADS*NUM_OPS;
+
+                long start = System.nanoTime();
+                for (int i=0; i<NUM_THREADS; i++) {
+                    Thread th = new Thread() {
+                        final Random rnd = new Random();
+                        @Override
+                        public void run() {
+                            for (int j=0; j<NUM_OPS; j++) {
+                                t.deposit(kind, rnd);
+                            }
+                        }
+                    };
+                    threads[i] = th;
+                    th.start();
+                }
+                for (int i=0; i<NUM_THREADS; i++) {
+                    threads[i].join();
+                }
+                double took = (System.nanoTime()-start)/1e9;
+                String throughput = String.format("%.2f", (totalOps/took));
+                String atBank = (kind == 2)
+                        ? String.format(" At bank: %.2f%%", 100.0*t.atBank.sum()/totalOps) : "";
+                System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput + atBank
+                                   + (t.sum() == totalOps ? "" : " LOST UPDATES: " + (totalOps - t.sum())));
+                System.err.println(KINDS[kind] + "," + NUM_THREADS + "," + throughput);
+            }
+        }
+    }
+
+}
@@ -37,6 +37,11 @@ class Account extends Lockable {
     long balance;
     
     public Account(int bal) {
+        this(null, bal);
+    }
+    
+    public Account(Branch owner, int bal) {
+        super(owner);
         balance = bal;
     }
     
@@ -50,15 +55,28 @@ class Account extends Lockable {
         balance += amt;
     }
     
+    public void transferTo(Account to, int amt) {
+        if (amt <= balance) {
+            balance -= amt;
+            to.balance += amt;
+        }
+    }
+    
 }
 
 class Branch extends Lockable {
     Account[] accounts;
     
     public Branch(int numAccounts) {
+        this(null, numAccounts);
+    }
+    
+    // with an owner, the accounts' locks are owned by this branch's too
+    public Branch(Bank owner, int numAccounts) {
+        super(owner);
         accounts = new Account[numAccounts];
         for (int i=0; i<numAccounts; i++) {
-            accounts[i] = new Account(100);
+            accounts[i] = new Account(owner == null ? null : this, 100);
         }
     }
     
@@ -70,15 +88,35 @@ class Branch extends Lockable {
         return sum;
     }
     
+    public Account richest() {
+        Account max = accounts[0];
+        for (int i=1; i<accounts.length; i++) {
+            if (accounts[i].balance > max.balance) {
+                max = accounts[i];
+            }
+        }
+        return max;
+    }
+    
 }
 
 class Bank extends Lockable {
     Branch[] branches;
     
     public Bank(int numBranches, int numAccounts) {
+        this(numBranches, numAccounts, false);
+    }
+    
+    /**
+     * With owned set, each branch's lock is owned by the bank's and each
+     * account's by its branch's, so locking an account alone takes the
+     * whole path. Otherwise every lock is a root and ops take the
+     * intentions above them by hand.
+     */
+    public Bank(int numBranches, int numAccounts, boolean owned) {
         branches = new Branch[numBranches];
         for (int i=0; i<numBranches; i++) {
-            branches[i] = new Branch(numAccounts);
+            branches[i] = new Branch(owned ? this : null, numAccounts);
         }
     }
     
@@ -96,15 +134,53 @@ public abstract class BankTest {
     public static final int NUM_BRANCHES = 10;
     public static final int NUM_ACCTS_PER_BRANCH = 10;
 
-    public final int numWithdraw, numDeposit, numBranch, numBank;
+    public final int numWithdraw, numDeposit, numBranch, numScanWithdraw, numTransfer, numBank;
     
     public BankTest(int nWithdraw, int nDeposit, int nBranch, int nBank) {
+        this(nWithdraw, nDeposit, nBranch, nBranch, nBank);
+    }
+    
+    public BankTest(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        this(nWithdraw, nDeposit, nBranch, nScanWithdraw, nScanWithdraw, nBank);
+    }
+    
+    public BankTest(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
         numWithdraw = nWithdraw;
         numDeposit = nDeposit;
         numBranch = nBranch;
+        numScanWithdraw = nScanWithdraw;
+        numTransfer = nTransfer;
         numBank = nBank;
     }
     
+    /**
+     * Parses the cumulative op percentages: withdraw, deposit, branch,
+     * [scan+withdraw, [transfer,]] bank. Without the optional arguments
+     * no scan+withdraw or transfer ops are run.
+     */
+    public static int[] parseArgs(String[] args) {
+        int[] a = new int[6];
+        a[0] = Integer.parseInt(args[0]);
+        a[1] = Integer.parseInt(args[1]);
+        a[2] = Integer.parseInt(args[2]);
+        if (args.length > 5) {
+            a[3] = Integer.parseInt(args[3]);
+            a[4] = Integer.parseInt(args[4]);
+            a[5] = Integer.parseInt(args[5]);
+        }
+        else if (args.length > 4) {
+            a[3] = Integer.parseInt(args[3]);
+            a[4] = a[3];
+            a[5] = Integer.parseInt(args[4]);
+        }
+        else {
+            a[3] = a[2];
+            a[4] = a[2];
+            a[5] = Integer.parseInt(args[3]);
+        }
+        return a;
+    }
+    
     public abstract void sumOneBranch(Bank b, Random r);
     
     public abstract void sumAll(Bank b);
@@ -113,13 +189,26 @@ public abstract class BankTest {
     
     public abstract void deposit(Bank b, Random r);
     
+    // sums a branch and then withdraws from its richest account
+    public abstract void scanAndWithdraw(Bank b, Random r);
+    
+    // moves money between two different accounts, usually in different
+    // branches
+    public abstract void transfer(Bank b, Random r);
+    
+    protected Bank newBank() {
+        return new Bank(NUM_BRANCHES, NUM_ACCTS_PER_BRANCH);
+    }
+    
     public void runExperiment() throws InterruptedException, FileNotFoundException {
         
-        final Bank b = new Bank(NUM_BRANCHES, NUM_ACCTS_PER_BRANCH);
+        final Bank b = newBank();
         
         System.out.println("Withdraws: " + numWithdraw);
         System.out.println("Deposits: " + numDeposit);
         System.out.println("Branch: " + numBranch);
+        System.out.println("Scan+withdraw: " + numScanWithdraw);
+        System.out.println("Transfer: " + numTransfer);
         System.out.println("Bank: " + numBank);
         
         for (int ts=1; ts<=16; ts++) {
@@ -158,6 +247,12 @@ public abstract class BankTest {
                             else if (rNum < numBranch) {
                                 sumOneBranch(b, rnd);
                             }
+                            else if (rNum < numScanWithdraw) {
+                                scanAndWithdraw(b, rnd);
+                            }
+                            else if (rNum < numTransfer) {
+                                transfer(b, rnd);
+                            }
                             else {
                                 sumAll(b);
                             }
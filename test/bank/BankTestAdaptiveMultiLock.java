@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.bank;
+
+import java.io.FileNotFoundException;
+import java.util.Random;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Mode;
+
+/**
+ * BankTestOwnedMultiLock where each op locks its data with
+ * MultiLock.lockAdaptive: the whole bank while it is quiet, and down at
+ * the branch or account once threads start blocking.
+ */
+public class BankTestAdaptiveMultiLock extends BankTestOwnedMultiLock {
+
+    public BankTestAdaptiveMultiLock(int nWithdraw, int nDeposit, int nBranch, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nBank);
+    }
+
+    public BankTestAdaptiveMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestAdaptiveMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
+
+    @Override
+    public void withdraw(Bank b, Random r) {
+        Account acct = b.branches[r.nextInt(NUM_BRANCHES)].accounts[r.nextInt(NUM_ACCTS_PER_BRANCH)];
+        int amt = r.nextInt(60);
+
+        MultiLock held = acct.mlock.lockAdaptive(Mode.X);
+        acct.withdraw(amt);
+        held.unlockPath(Mode.X);
+    }
+
+    @Override
+    public void deposit(Bank b, Random r) {
+        Account acct = b.branches[r.nextInt(NUM_BRANCHES)].accounts[r.nextInt(NUM_ACCTS_PER_BRANCH)];
+        int amt = r.nextInt(60);
+
+        MultiLock held = acct.mlock.lockAdaptive(Mode.X);
+        acct.deposit(amt);
+        held.unlockPath(Mode.X);
+    }
+
+    @Override
+    public void sumOneBranch(Bank b, Random r) {
+        Branch branch = b.branches[r.nextInt(NUM_BRANCHES)];
+
+        MultiLock held = branch.mlock.lockAdaptive(Mode.S);
+        branch.sumBalances();
+        held.unlockPath(Mode.S);
+    }
+
+    @Override
+    public void scanAndWithdraw(Bank b, Random r) {
+        Branch branch = b.branches[r.nextInt(NUM_BRANCHES)];
+        int amt = r.nextInt(60);
+
+        MultiLock held = branch.mlock.lockAdaptive(Mode.X);
+        branch.richest().withdraw(amt);
+        held.unlockPath(Mode.X);
+    }
+
+    @Override
+    public void transfer(Bank b, Random r) {
+        int numAccts = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+        int from = r.nextInt(numAccts);
+        int to = (from + 1 + r.nextInt(numAccts - 1)) % numAccts;
+        int amt = r.nextInt(60);
+
+        Account fromAcct = b.branches[from / NUM_ACCTS_PER_BRANCH].accounts[from % NUM_ACCTS_PER_BRANCH];
+        Account toAcct = b.branches[to / NUM_ACCTS_PER_BRANCH].accounts[to % NUM_ACCTS_PER_BRANCH];
+        Account lo = (from < to) ? fromAcct : toAcct;
+        Account hi = (from < to) ? toAcct : fromAcct;
+        Branch hiBranch = b.branches[Math.max(from, to) / NUM_ACCTS_PER_BRANCH];
+
+        // Only the first lock adapts. Were the second to pick a coarser
+        // level than the first, it would be locking an ancestor after a
+        // descendant, against the tree order.
+        MultiLock held = lo.mlock.lockAdaptive(Mode.X);
+        boolean covered = held == b.mlock || held == hiBranch.mlock;
+        if (!covered) {
+            hi.mlock.lockWrite();
+        }
+        fromAcct.transferTo(toAcct, amt);
+        if (!covered) {
+            hi.mlock.unlockWrite();
+        }
+        held.unlockPath(Mode.X);
+    }
+
+    public static void main(String[] args) throws FileNotFoundException, InterruptedException {
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestAdaptiveMultiLock(a[0], a[1], a[2], a[3], a[4], a[5]);
+        b.runExperiment();
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.bank;
+
+import java.io.FileNotFoundException;
+import java.util.Random;
+
+/**
+ * BankTestMultiLock taking X rather than SIX on the branch for
+ * scanAndWithdraw, which is what had to be done before SIX existed.
+ */
+public class BankTestBranchXMultiLock extends BankTestMultiLock {
+
+    public BankTestBranchXMultiLock(int nWithdraw, int nDeposit, int nBranch, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nBank);
+    }
+
+    public BankTestBranchXMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestBranchXMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
+
+    @Override
+    public void scanAndWithdraw(Bank b, Random r) {
+        int branchId = r.nextInt(NUM_BRANCHES);
+        int amt = r.nextInt(60);
+
+        b.mlock.lockIntentionWrite();
+        Branch branch = b.branches[branchId];
+        branch.mlock.lockWrite();
+        
+        Account acct = branch.richest();
+        acct.withdraw(amt);
+
+        branch.mlock.unlockWrite();
+        b.mlock.unlockIntentionWrite();
+    }
+
+    public static void main(String[] args) throws FileNotFoundException, InterruptedException {
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestBranchXMultiLock(a[0], a[1], a[2], a[3], a[4], a[5]);
+        b.runExperiment();
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.bank;
+
+import java.io.FileNotFoundException;
+import java.util.Random;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Mode;
+
+/**
+ * BankTestOwnedMultiLock with transfers locking both accounts with
+ * MultiLock.lockAll, so that the shared ancestors are taken once. Run
+ * with -Dtransfer.perTarget=true to lock the two paths one after the
+ * other instead, taking the shared ancestors twice.
+ */
+public class BankTestLockAllMultiLock extends BankTestOwnedMultiLock {
+
+    static final boolean PER_TARGET = Boolean.getBoolean("transfer.perTarget");
+
+    public BankTestLockAllMultiLock(int nWithdraw, int nDeposit, int nBranch, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nBank);
+    }
+
+    public BankTestLockAllMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestLockAllMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
+
+    @Override
+    public void transfer(Bank b, Random r) {
+        if (PER_TARGET) {
+            super.transfer(b, r);
+            return;
+        }
+
+        int numAccts = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+        int from = r.nextInt(numAccts);
+        int to = (from + 1 + r.nextInt(numAccts - 1)) % numAccts;
+        int amt = r.nextInt(60);
+
+        Account fromAcct = b.branches[from / NUM_ACCTS_PER_BRANCH].accounts[from % NUM_ACCTS_PER_BRANCH];
+        Account toAcct = b.branches[to / NUM_ACCTS_PER_BRANCH].accounts[to % NUM_ACCTS_PER_BRANCH];
+
+        MultiLock.lockAll(Mode.X, fromAcct.mlock, toAcct.mlock);
+        fromAcct.transferTo(toAcct, amt);
+        MultiLock.unlockAll(Mode.X, fromAcct.mlock, toAcct.mlock);
+    }
+
+    public static void main(String[] args) throws FileNotFoundException, InterruptedException {
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestLockAllMultiLock(a[0], a[1], a[2], a[3], a[4], a[5]);
+        b.runExperiment();
+    }
+
+}
@@ -29,12 +29,22 @@ package test.bank;
 import java.io.FileNotFoundException;
 import java.util.Random;
 
+import multilock.MultiLock;
+
 public class BankTestMultiLock extends BankTest {
 
     public BankTestMultiLock(int nWithdraw, int nDeposit, int nBranch, int nBank) {
         super(nWithdraw, nDeposit, nBranch, nBank);
     }
 
+    public BankTestMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
+
     public void withdraw(Bank b, Random r) {
         int branchId = r.nextInt(NUM_BRANCHES);
         int acctId = r.nextInt(NUM_ACCTS_PER_BRANCH);
@@ -84,6 +94,64 @@ public class BankTestMultiLock extends BankTest {
         b.mlock.unlockIntentionRead();
     }
     
+    public void scanAndWithdraw(Bank b, Random r) {
+        int branchId = r.nextInt(NUM_BRANCHES);
+        int amt = r.nextInt(60);
+
+        b.mlock.lockIntentionWrite();
+        Branch branch = b.branches[branchId];
+        // SIX: other readers of the branch's accounts can carry on
+        branch.mlock.lockSharedIntentionWrite();
+        
+        Account acct = branch.richest();
+        acct.mlock.lockWrite();
+        
+        acct.withdraw(amt);
+
+        acct.mlock.unlockWrite();
+        branch.mlock.unlockSharedIntentionWrite();
+        b.mlock.unlockIntentionWrite();
+    }
+    
+    public void transfer(Bank b, Random r) {
+        int numAccts = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+        int from = r.nextInt(numAccts);
+        int to = (from + 1 + r.nextInt(numAccts - 1)) % numAccts;
+        int amt = r.nextInt(60);
+
+        // lock in tree order (each branch followed by its accounts), as
+        // the other ops do, so that no two ops can each hold what the
+        // other wants
+        int lo = Math.min(from, to), hi = Math.max(from, to);
+        Branch loBranch = b.branches[lo / NUM_ACCTS_PER_BRANCH];
+        Branch hiBranch = b.branches[hi / NUM_ACCTS_PER_BRANCH];
+        Account loAcct = loBranch.accounts[lo % NUM_ACCTS_PER_BRANCH];
+        Account hiAcct = hiBranch.accounts[hi % NUM_ACCTS_PER_BRANCH];
+
+        b.mlock.lockIntentionWrite();
+        loBranch.mlock.lockIntentionWrite();
+        loAcct.mlock.lockWrite();
+        if (hiBranch != loBranch) {
+            hiBranch.mlock.lockIntentionWrite();
+        }
+        hiAcct.mlock.lockWrite();
+
+        if (from == lo) {
+            loAcct.transferTo(hiAcct, amt);
+        }
+        else {
+            hiAcct.transferTo(loAcct, amt);
+        }
+
+        hiAcct.mlock.unlockWrite();
+        if (hiBranch != loBranch) {
+            hiBranch.mlock.unlockIntentionWrite();
+        }
+        loAcct.mlock.unlockWrite();
+        loBranch.mlock.unlockIntentionWrite();
+        b.mlock.unlockIntentionWrite();
+    }
+    
     public void sumAll(Bank b) {
         b.mlock.lockRead();
 
@@ -93,12 +161,12 @@ public class BankTestMultiLock extends BankTest {
     }
 
     public static void main(String[] args) throws FileNotFoundException, InterruptedException {
-        int numWithdraw = Integer.parseInt(args[0]);
-        int numDeposit = Integer.parseInt(args[1]);
-        int numBranch = Integer.parseInt(args[2]);
-        int numBank = Integer.parseInt(args[3]);
-        BankTest b = new BankTestMultiLock(numWithdraw, numDeposit, numBranch, numBank);
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestMultiLock(a[0], a[1], a[2], a[3], a[4], a[5]);
         b.runExperiment();
+        long[] spins = MultiLock.spinCounters();
+        System.out.println("Spin acquired: " + spins[0] + " Spin parked: " + spins[1]
+                           + " CAS backoffs: " + spins[2]);
     }
     
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.bank;
+
+import java.io.FileNotFoundException;
+import java.util.Random;
+
+/**
+ * BankTestMultiLock on a bank whose locks are owned by the lock of what
+ * contains them, so each op locks only its target and the intentions
+ * above it are taken by MultiLock. Run with the same arguments as
+ * BankTestMultiLock, which takes those intentions by hand, to compare.
+ */
+public class BankTestOwnedMultiLock extends BankTestMultiLock {
+
+    public BankTestOwnedMultiLock(int nWithdraw, int nDeposit, int nBranch, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nBank);
+    }
+
+    public BankTestOwnedMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestOwnedMultiLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
+
+    @Override
+    protected Bank newBank() {
+        return new Bank(NUM_BRANCHES, NUM_ACCTS_PER_BRANCH, true);
+    }
+
+    @Override
+    public void withdraw(Bank b, Random r) {
+        Account acct = b.branches[r.nextInt(NUM_BRANCHES)].accounts[r.nextInt(NUM_ACCTS_PER_BRANCH)];
+        int amt = r.nextInt(60);
+
+        acct.mlock.lockWrite();
+        acct.withdraw(amt);
+        acct.mlock.unlockWrite();
+    }
+
+    @Override
+    public void deposit(Bank b, Random r) {
+        Account acct = b.branches[r.nextInt(NUM_BRANCHES)].accounts[r.nextInt(NUM_ACCTS_PER_BRANCH)];
+        int amt = r.nextInt(60);
+
+        acct.mlock.lockWrite();
+        acct.deposit(amt);
+        acct.mlock.unlockWrite();
+    }
+
+    @Override
+    public void sumOneBranch(Bank b, Random r) {
+        Branch branch = b.branches[r.nextInt(NUM_BRANCHES)];
+
+        branch.mlock.lockRead();
+        branch.sumBalances();
+        branch.mlock.unlockRead();
+    }
+
+    @Override
+    public void scanAndWithdraw(Bank b, Random r) {
+        Branch branch = b.branches[r.nextInt(NUM_BRANCHES)];
+        int amt = r.nextInt(60);
+
+        branch.mlock.lockSharedIntentionWrite();
+        Account acct = branch.richest();
+        // the IX on the bank and branch it takes again are re-entrant
+        acct.mlock.lockWrite();
+
+        acct.withdraw(amt);
+
+        acct.mlock.unlockWrite();
+        branch.mlock.unlockSharedIntentionWrite();
+    }
+
+    @Override
+    public void transfer(Bank b, Random r) {
+        int numAccts = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+        int from = r.nextInt(numAccts);
+        int to = (from + 1 + r.nextInt(numAccts - 1)) % numAccts;
+        int amt = r.nextInt(60);
+
+        Account fromAcct = b.branches[from / NUM_ACCTS_PER_BRANCH].accounts[from % NUM_ACCTS_PER_BRANCH];
+        Account toAcct = b.branches[to / NUM_ACCTS_PER_BRANCH].accounts[to % NUM_ACCTS_PER_BRANCH];
+
+        // by account number, which is also tree order
+        Account lo = (from < to) ? fromAcct : toAcct;
+        Account hi = (from < to) ? toAcct : fromAcct;
+        lo.mlock.lockWrite();
+        hi.mlock.lockWrite();
+        fromAcct.transferTo(toAcct, amt);
+        hi.mlock.unlockWrite();
+        lo.mlock.unlockWrite();
+    }
+
+    public static void main(String[] args) throws FileNotFoundException, InterruptedException {
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestOwnedMultiLock(a[0], a[1], a[2], a[3], a[4], a[5]);
+        b.runExperiment();
+    }
+
+}
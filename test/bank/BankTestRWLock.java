@@ -35,6 +35,14 @@ public class BankTestRWLock extends BankTest {
         super(nWithdraw, nDeposit, nBranch, nBank);
     }
 
+    public BankTestRWLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestRWLock(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
+
     public void withdraw(Bank b, Random r) {
         int branchId = r.nextInt(NUM_BRANCHES);
         int acctId = r.nextInt(NUM_ACCTS_PER_BRANCH);
@@ -92,6 +100,61 @@ public class BankTestRWLock extends BankTest {
         b.rlock.unlock();
     }
     
+    public void scanAndWithdraw(Bank b, Random r) {
+        int branchId = r.nextInt(NUM_BRANCHES);
+        int amt = r.nextInt(60);
+
+        b.rlock.lock();
+        Branch branch = b.branches[branchId];
+        // writing the branch excludes everyone else under it
+        branch.wlock.lock();
+        
+        Account acct = branch.richest();
+        acct.withdraw(amt);
+
+        branch.wlock.unlock();
+        b.rlock.unlock();
+    }
+    
+    public void transfer(Bank b, Random r) {
+        int numAccts = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+        int from = r.nextInt(numAccts);
+        int to = (from + 1 + r.nextInt(numAccts - 1)) % numAccts;
+        int amt = r.nextInt(60);
+
+        // lock in tree order (each branch followed by its accounts), as
+        // the other ops do, so that no two ops can each hold what the
+        // other wants
+        int lo = Math.min(from, to), hi = Math.max(from, to);
+        Branch loBranch = b.branches[lo / NUM_ACCTS_PER_BRANCH];
+        Branch hiBranch = b.branches[hi / NUM_ACCTS_PER_BRANCH];
+        Account loAcct = loBranch.accounts[lo % NUM_ACCTS_PER_BRANCH];
+        Account hiAcct = hiBranch.accounts[hi % NUM_ACCTS_PER_BRANCH];
+
+        b.rlock.lock();
+        loBranch.rlock.lock();
+        loAcct.wlock.lock();
+        if (hiBranch != loBranch) {
+            hiBranch.rlock.lock();
+        }
+        hiAcct.wlock.lock();
+
+        if (from == lo) {
+            loAcct.transferTo(hiAcct, amt);
+        }
+        else {
+            hiAcct.transferTo(loAcct, amt);
+        }
+
+        hiAcct.wlock.unlock();
+        if (hiBranch != loBranch) {
+            hiBranch.rlock.unlock();
+        }
+        loAcct.wlock.unlock();
+        loBranch.rlock.unlock();
+        b.rlock.unlock();
+    }
+    
     public void sumAll(Bank b) {
         b.rlock.lock();
         
@@ -118,11 +181,8 @@ public class BankTestRWLock extends BankTest {
         b.rlock.unlock();
     }
     public static void main(String[] args) throws FileNotFoundException, InterruptedException {
-        int numWithdraw = Integer.parseInt(args[0]);
-        int numDeposit = Integer.parseInt(args[1]);
-        int numBranch = Integer.parseInt(args[2]);
-        int numBank = Integer.parseInt(args[3]);
-        BankTest b = new BankTestRWLock(numWithdraw, numDeposit, numBranch, numBank);
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestRWLock(a[0], a[1], a[2], a[3], a[4], a[5]);
         b.runExperiment();
     }
     
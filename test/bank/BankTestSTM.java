@@ -36,6 +36,14 @@ public class BankTestSTM extends BankTest {
     public BankTestSTM(int nWithdraw, int nDeposit, int nBranch, int nBank) {
         super(nWithdraw, nDeposit, nBranch, nBank);
     }
+
+    public BankTestSTM(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nBank);
+    }
+
+    public BankTestSTM(int nWithdraw, int nDeposit, int nBranch, int nScanWithdraw, int nTransfer, int nBank) {
+        super(nWithdraw, nDeposit, nBranch, nScanWithdraw, nTransfer, nBank);
+    }
     
     @Atomic
     public void withdraw(Bank b, Random r) {
@@ -66,17 +74,36 @@ public class BankTestSTM extends BankTest {
         branch.sumBalances();
     }
 
+    @Atomic
+    public void scanAndWithdraw(Bank b, Random r) {
+        int branchId = r.nextInt(NUM_BRANCHES);
+        int amt = r.nextInt(60);
+
+        Branch branch = b.branches[branchId];
+        Account acct = branch.richest();
+        acct.withdraw(amt);
+    }
+
+    @Atomic
+    public void transfer(Bank b, Random r) {
+        int numAccts = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+        int from = r.nextInt(numAccts);
+        int to = (from + 1 + r.nextInt(numAccts - 1)) % numAccts;
+        int amt = r.nextInt(60);
+
+        Account fromAcct = b.branches[from / NUM_ACCTS_PER_BRANCH].accounts[from % NUM_ACCTS_PER_BRANCH];
+        Account toAcct = b.branches[to / NUM_ACCTS_PER_BRANCH].accounts[to % NUM_ACCTS_PER_BRANCH];
+        fromAcct.transferTo(toAcct, amt);
+    }
+
     @Atomic    
     public void sumAll(Bank b) {
         b.sumAll();
     }
     
     public static void main(String[] args) throws FileNotFoundException, InterruptedException {
-        int numWithdraw = Integer.parseInt(args[0]);
-        int numDeposit = Integer.parseInt(args[1]);
-        int numBranch = Integer.parseInt(args[2]);
-        int numBank = Integer.parseInt(args[3]);
-        BankTest b = new BankTestSTM(numWithdraw, numDeposit, numBranch, numBank);
+        int[] a = BankTest.parseArgs(args);
+        BankTest b = new BankTestSTM(a[0], a[1], a[2], a[3], a[4], a[5]);
         b.runExperiment();
     }
 
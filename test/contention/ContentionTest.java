@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.contention;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import multilock.MultiLock;
+
+/**
+ * Scanners take S on a node while updaters take X on its children (and
+ * therefore IX on the node). Reports the CPU time burnt per op, which
+ * should stay close to the useful work done when conflicting S/IX
+ * acquisitions block rather than spin.
+ */
+public class ContentionTest {
+
+    public static final int NUM_CHILDREN = 10;
+    public static final int SCAN_LENGTH = 100;
+
+    public final int numScan;
+
+    final MultiLock node = new MultiLock(null);
+    final MultiLock[] childLocks = new MultiLock[NUM_CHILDREN];
+    final long[] values = new long[NUM_CHILDREN];
+
+    public ContentionTest(int nScan) {
+        numScan = nScan;
+        for (int i=0; i<NUM_CHILDREN; i++) {
+            childLocks[i] = new MultiLock(node);
+        }
+    }
+
+    public long scan() {
+        node.lockRead();
+        long sum = 0;
+        for (int k=0; k<SCAN_LENGTH; k++) {
+            for (int i=0; i<NUM_CHILDREN; i++) {
+                sum += values[i];
+            }
+        }
+        node.unlockRead();
+        return sum;
+    }
+
+    public void update(Random r) {
+        int i = r.nextInt(NUM_CHILDREN);
+        childLocks[i].lockWrite();
+        values[i]++;
+        childLocks[i].unlockWrite();
+    }
+
+    public void runExperiment() throws InterruptedException {
+
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+        System.out.println("Scans: " + numScan);
+
+        for (int ts=1; ts<=16; ts++) {
+            final int NUM_THREADS = ts;
+            final int NUM_OPS = 100000;
+
+            Thread[] threads = new Thread[NUM_THREADS];
+            final AtomicLong cpuNanos = new AtomicLong(0);
+
+            long totalOps = NUM_THREADS*NUM_OPS;
+            System.out.println("------------------------");
+            System.out.println("Threads: " + NUM_THREADS);
+            System.out.println("Ops/Thread: " + NUM_OPS);
+            System.out.println("Total ops: " + totalOps);
+            System.out.println();
+
+            long start = System.currentTimeMillis();
+
+            for (int i=0; i<NUM_THREADS; i++) {
+                Thread t = new Thread() {
+                    final Random rnd = new Random();
+                    @Override
+                    public void run() {
+                        long cpuStart = mx.getCurrentThreadCpuTime();
+                        for (int j=0; j<NUM_OPS; j++) {
+                            if (rnd.nextInt(100) < numScan) {
+                                scan();
+                            }
+                            else {
+                                update(rnd);
+                            }
+                        }
+                        cpuNanos.addAndGet(mx.getCurrentThreadCpuTime() - cpuStart);
+                    }
+                };
+                threads[i] = t;
+                t.start();
+            }
+
+            for (int i=0; i<NUM_THREADS; i++) {
+                threads[i].join();
+            }
+
+            double took = (System.currentTimeMillis()-start)/1000.0;
+            System.out.println("Took (secs): " + String.format("%.2f", took));
+            String throughput = String.format("%.2f", (totalOps/took));
+            System.out.println("Ops/Sec: " + throughput);
+            String cpuPerOp = String.format("%.2f", cpuNanos.doubleValue()/totalOps);
+            System.out.println("CPU ns/op: " + cpuPerOp);
+            System.err.println(NUM_THREADS + "," + throughput + "," + cpuPerOp);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int numScan = Integer.parseInt(args[0]);
+        ContentionTest c = new ContentionTest(numScan);
+        c.runExperiment();
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.deadlock;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import multilock.DeadlockDetector;
+import multilock.MultiLock;
+
+/**
+ * Run with and without -Dmultilock.detectDeadlocks=true. With it, two
+ * threads deadlock through an intention conflict (one reads a whole
+ * branch and then wants an account in another branch, whose writer wants
+ * an account in the first) and the detector should report the cycle and
+ * interrupt one of them. Either way, reports contended leaf throughput,
+ * to compare the cost of tracking waits.
+ */
+public class DetectorTest {
+
+    public static final int NUM_LEAVES = 16;
+
+    public static void deadlock() throws InterruptedException {
+        MultiLock bank = new MultiLock(null);
+        final MultiLock branch1 = new MultiLock(bank);
+        final MultiLock branch2 = new MultiLock(bank);
+        final MultiLock acct1 = new MultiLock(branch1);
+        final MultiLock acct2 = new MultiLock(branch2);
+        final CountDownLatch bothIn = new CountDownLatch(2);
+        final int[] interrupted = new int[1];
+
+        Thread reader = new Thread("reader") {
+            @Override
+            public void run() {
+                branch1.lockRead();
+                try {
+                    bothIn.countDown();
+                    bothIn.await();
+                    acct2.lockWriteInterruptibly();
+                    acct2.unlockWrite();
+                }
+                catch (InterruptedException e) {
+                    synchronized (interrupted) {
+                        interrupted[0]++;
+                    }
+                }
+                finally {
+                    branch1.unlockRead();
+                }
+            }
+        };
+        Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                acct2.lockWrite();
+                try {
+                    bothIn.countDown();
+                    bothIn.await();
+                    acct1.lockWriteInterruptibly();
+                    acct1.unlockWrite();
+                }
+                catch (InterruptedException e) {
+                    synchronized (interrupted) {
+                        interrupted[0]++;
+                    }
+                }
+                finally {
+                    acct2.unlockWrite();
+                }
+            }
+        };
+        new DeadlockDetector(100).start();
+        long start = System.nanoTime();
+        reader.start();
+        writer.start();
+        reader.join();
+        writer.join();
+        System.out.println("Deadlock broken after (ms): "
+                           + (System.nanoTime() - start)/1000000
+                           + ", threads interrupted: " + interrupted[0]);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (DeadlockDetector.isEnabled()) {
+            deadlock();
+        }
+        else {
+            System.out.println("Detector disabled, skipping the deadlock");
+        }
+
+        MultiLock branch = new MultiLock(new MultiLock(null));
+        final MultiLock[] leaves = new MultiLock[NUM_LEAVES];
+        for (int i=0; i<NUM_LEAVES; i++) {
+            leaves[i] = new MultiLock(branch);
+        }
+        final int NUM_OPS = 1000000;
+        for (int ts=1; ts<=16; ts*=2) {
+            final int NUM_THREADS = ts;
+            Thread[] threads = new Thread[NUM_THREADS];
+            long totalOps = (long) NUM_THREADS*NUM_OPS;
+            long start = System.nanoTime();
+            for (int i=0; i<NUM_THREADS; i++) {
+                Thread t = new Thread() {
+                    final Random rnd = new Random();
+                    @Override
+                    public void run() {
+                        for (int j=0; j<NUM_OPS; j++) {
+                            MultiLock l = leaves[rnd.nextInt(NUM_LEAVES)];
+                            l.lockWrite();
+                            l.unlockWrite();
+                        }
+                    }
+                };
+                threads[i] = t;
+                t.start();
+            }
+            for (int i=0; i<NUM_THREADS; i++) {
+                threads[i].join();
+            }
+            double took = (System.nanoTime()-start)/1e9;
+            String throughput = String.format("%.2f", (totalOps/took));
+            System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput);
+            System.err.println(DeadlockDetector.isEnabled() + "," + NUM_THREADS + "," + throughput);
+        }
+    }
+
+}
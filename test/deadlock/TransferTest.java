@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.deadlock;
+
+import java.util.Random;
+
+import multilock.LockTransaction;
+import multilock.LockTransaction.DeadlockAvoidance;
+import multilock.MultiLock;
+import multilock.TransactionAbortedException;
+
+/**
+ * Random transfers between accounts in different branches. With NONE the
+ * two accounts are locked in a global (tree) order, as they must be; with
+ * WAIT_DIE and WOUND_WAIT they are locked source first, in no global
+ * order, and the transfer is retried whenever the policy aborts it.
+ * Reports throughput and aborts per committed transfer, and checks that
+ * no money was made or lost.
+ */
+public class TransferTest {
+
+    public static final int NUM_BRANCHES = 4;
+    public static final int NUM_ACCTS_PER_BRANCH = 8;
+    public static final int NUM_ACCTS = NUM_BRANCHES*NUM_ACCTS_PER_BRANCH;
+
+    final MultiLock[] accounts = new MultiLock[NUM_ACCTS];
+    final long[] balances = new long[NUM_ACCTS];
+
+    public TransferTest() {
+        MultiLock bank = new MultiLock(null);
+        for (int i=0; i<NUM_BRANCHES; i++) {
+            MultiLock branch = new MultiLock(bank);
+            for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+                accounts[i*NUM_ACCTS_PER_BRANCH + j] = new MultiLock(branch);
+                balances[i*NUM_ACCTS_PER_BRANCH + j] = 100;
+            }
+        }
+    }
+
+    // returns the number of aborted attempts
+    public int transfer(Random r, LockTransaction tx, boolean ordered) {
+        int from = r.nextInt(NUM_ACCTS);
+        int fromBranch = from / NUM_ACCTS_PER_BRANCH;
+        int toBranch = (fromBranch + 1 + r.nextInt(NUM_BRANCHES - 1)) % NUM_BRANCHES;
+        int to = toBranch*NUM_ACCTS_PER_BRANCH + r.nextInt(NUM_ACCTS_PER_BRANCH);
+        int amt = r.nextInt(60);
+
+        // accounts are numbered in tree order
+        int first = ordered ? Math.min(from, to) : from;
+        int second = ordered ? Math.max(from, to) : to;
+        for (int aborts=0; ; aborts++) {
+            try {
+                tx.lockWrite(accounts[first]);
+                tx.lockWrite(accounts[second]);
+            }
+            catch (TransactionAbortedException e) {
+                continue;
+            }
+            if (amt <= balances[from]) {
+                balances[from] -= amt;
+                balances[to] += amt;
+            }
+            tx.commit();
+            return aborts;
+        }
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i=0; i<NUM_ACCTS; i++) {
+            sum += balances[i];
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int NUM_OPS = 500000;
+
+        for (final DeadlockAvoidance avoidance : DeadlockAvoidance.values()) {
+            final boolean ordered = avoidance == DeadlockAvoidance.NONE;
+            System.out.println("------------------------");
+            System.out.println(ordered ? "Ordered" : avoidance.toString());
+
+            for (int ts=1; ts<=maxThreads; ts*=2) {
+                final int NUM_THREADS = ts;
+                final TransferTest t = new TransferTest();
+                final long[] aborts = new long[NUM_THREADS];
+                Thread[] threads = new Thread[NUM_THREADS];
+                long totalOps = (long) NUM_THREADS*NUM_OPS;
+
+                long start = System.nanoTime();
+                for (int i=0; i<NUM_THREADS; i++) {
+                    final int id = i;
+                    Thread th = new Thread() {
+                        final Random rnd = new Random();
+                        @Override
+                        public void run() {
+                            LockTransaction tx = new LockTransaction(avoidance);
+                            long n = 0;
+                            for (int j=0; j<NUM_OPS; j++) {
+                                n += t.transfer(rnd, tx, ordered);
+                            }
+                            aborts[id] = n;
+                        }
+                    };
+                    threads[i] = th;
+                    th.start();
+                }
+                long totalAborts = 0;
+                for (int i=0; i<NUM_THREADS; i++) {
+                    threads[i].join();
+                    totalAborts += aborts[i];
+                }
+                double took = (System.nanoTime()-start)/1e9;
+                String throughput = String.format("%.2f", (totalOps/took));
+                String abortRate = String.format("%.4f", totalAborts/(double) totalOps);
+                System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput
+                                   + " Aborts/op: " + abortRate
+                                   + (t.sum() == 100*NUM_ACCTS ? "" : " SUM WRONG: " + t.sum()));
+                System.err.println(avoidance + "," + NUM_THREADS + "," + throughput + "," + abortRate);
+            }
+        }
+    }
+
+}
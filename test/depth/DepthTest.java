@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.depth;
+
+import java.util.Random;
+
+import multilock.MultiLock;
+
+/**
+ * Cost of taking a whole root-to-leaf path at different hierarchy depths.
+ * Each level fans out FANOUT ways (up to NUM_LEAVES nodes) and threads
+ * X-lock random leaves, so the upper levels see IX traffic from every
+ * thread.
+ */
+public class DepthTest {
+
+    public static final int[] DEPTHS = { 2, 4, 8, 16 };
+    public static final int FANOUT = 4;
+    public static final int NUM_LEAVES = 64;
+
+    final MultiLock[] leaves = new MultiLock[NUM_LEAVES];
+    final long[] values = new long[NUM_LEAVES];
+
+    public DepthTest(int depth) {
+        // level d has min(FANOUT^d, NUM_LEAVES) nodes, and node k's owner
+        // is node k % n of the level above
+        MultiLock[] level = { new MultiLock(null) };
+        for (int d=1; d<depth; d++) {
+            MultiLock[] next = new MultiLock[Math.min(level.length*FANOUT, NUM_LEAVES)];
+            for (int k=0; k<next.length; k++) {
+                next[k] = new MultiLock(level[k % level.length]);
+            }
+            level = next;
+        }
+        for (int i=0; i<NUM_LEAVES; i++) {
+            leaves[i] = level[i % level.length];
+        }
+    }
+
+    public void update(Random r) {
+        int i = r.nextInt(NUM_LEAVES);
+        leaves[i].lockWrite();
+        values[i]++;
+        leaves[i].unlockWrite();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int NUM_OPS = 1000000;
+
+        for (int depth : DEPTHS) {
+            final DepthTest t = new DepthTest(depth);
+            System.out.println("------------------------");
+            System.out.println("Depth: " + depth);
+
+            for (int ts=1; ts<=maxThreads; ts*=2) {
+                final int NUM_THREADS = ts;
+                Thread[] threads = new Thread[NUM_THREADS];
+                long totalOps = (long) NUM_THREADS*NUM_OPS;
+
+                long start = System.nanoTime();
+                for (int i=0; i<NUM_THREADS; i++) {
+                    Thread th = new Thread() {
+                        final Random rnd = new Random();
+                        @Override
+                        public void run() {
+                            for (int j=0; j<NUM_OPS; j++) {
+                                t.update(rnd);
+                            }
+                        }
+                    };
+                    threads[i] = th;
+                    th.start();
+                }
+                for (int i=0; i<NUM_THREADS; i++) {
+                    threads[i].join();
+                }
+                double took = (System.nanoTime()-start)/1e9;
+                String throughput = String.format("%.2f", (totalOps/took));
+                String nsPerOp = String.format("%.2f", took*1e9/totalOps);
+                System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput
+                                   + " ns/op: " + nsPerOp);
+                System.err.println(depth + "," + NUM_THREADS + "," + throughput + "," + nsPerOp);
+            }
+        }
+    }
+
+}
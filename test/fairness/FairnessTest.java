@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.fairness;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Fairness;
+import multilock.MultiLock.Layout;
+
+/**
+ * Scans take S on a root while other threads read (S) and write (X) its
+ * children, under each fairness policy. Reports the worst time any thread
+ * waited to acquire each kind of lock, which shows writers starving behind
+ * a steady stream of scans when the lock barges. First checks, on every
+ * layout, that no policy makes an upgrading reader wait for the queue.
+ */
+public class FairnessTest {
+
+    public static final int NUM_CHILDREN = 10;
+    public static final int SCAN_LENGTH = 100;
+    public static final int NUM_OPS = 50000;
+
+    static final int SCAN = 0, READ = 1, WRITE = 2;
+    static final String[] OP_NAMES = { "scan(S)", "read(S)", "write(X)" };
+
+    public final int numScan;
+    public final int numRead;
+
+    final MultiLock root;
+    final MultiLock[] childLocks = new MultiLock[NUM_CHILDREN];
+    final long[] values = new long[NUM_CHILDREN];
+
+    // worst wait in ns per op kind
+    final AtomicLongArray maxWait = new AtomicLongArray(3);
+
+    public FairnessTest(Fairness fairness, int nScan, int nRead) {
+        numScan = nScan;
+        numRead = nRead;
+        root = new MultiLock(null, fairness);
+        for (int i=0; i<NUM_CHILDREN; i++) {
+            childLocks[i] = new MultiLock(root, fairness);
+        }
+    }
+
+    void waited(int op, long nanos) {
+        long m;
+        while (nanos > (m = maxWait.get(op)) &&
+               !maxWait.compareAndSet(op, m, nanos));
+    }
+
+    public long scan() {
+        long start = System.nanoTime();
+        root.lockRead();
+        waited(SCAN, System.nanoTime() - start);
+        long sum = 0;
+        for (int k=0; k<SCAN_LENGTH; k++) {
+            for (int i=0; i<NUM_CHILDREN; i++) {
+                sum += values[i];
+            }
+        }
+        root.unlockRead();
+        return sum;
+    }
+
+    public long read(Random r) {
+        MultiLock l = childLocks[r.nextInt(NUM_CHILDREN)];
+        long start = System.nanoTime();
+        l.lockRead();
+        waited(READ, System.nanoTime() - start);
+        long v = values[0];
+        l.unlockRead();
+        return v;
+    }
+
+    public void write(Random r) {
+        int i = r.nextInt(NUM_CHILDREN);
+        long start = System.nanoTime();
+        childLocks[i].lockWrite();
+        waited(WRITE, System.nanoTime() - start);
+        values[i]++;
+        childLocks[i].unlockWrite();
+    }
+
+    public double run(int numThreads) throws InterruptedException {
+        Thread[] threads = new Thread[numThreads];
+        long start = System.currentTimeMillis();
+        for (int i=0; i<numThreads; i++) {
+            Thread t = new Thread() {
+                final Random rnd = new Random();
+                @Override
+                public void run() {
+                    for (int j=0; j<NUM_OPS; j++) {
+                        int rNum = rnd.nextInt(100);
+                        if (rNum < numScan) {
+                            scan();
+                        }
+                        else if (rNum < numScan + numRead) {
+                            read(rnd);
+                        }
+                        else {
+                            write(rnd);
+                        }
+                    }
+                }
+            };
+            threads[i] = t;
+            t.start();
+        }
+        for (int i=0; i<numThreads; i++) {
+            threads[i].join();
+        }
+        double took = (System.currentTimeMillis()-start)/1000.0;
+        return numThreads*NUM_OPS/took;
+    }
+
+    // A and C read, B queues to write, then A upgrades and C leaves. A
+    // must get X even though B queued first: B is waiting for A.
+    static boolean checkUpgrade(Layout layout, Fairness fairness)
+            throws InterruptedException {
+        final MultiLock lock = new MultiLock(null, layout, fairness);
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch upgrade = new CountDownLatch(1);
+        final CountDownLatch upgrading = new CountDownLatch(1);
+        Thread a = new Thread() {
+            @Override
+            public void run() {
+                lock.lockRead();
+                read.countDown();
+                try {
+                    upgrade.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                upgrading.countDown();
+                lock.upgradeReadToWrite();
+                lock.unlockWrite();
+            }
+        };
+        Thread b = new Thread() {
+            @Override
+            public void run() {
+                lock.lockWrite();
+                lock.unlockWrite();
+            }
+        };
+        // left parked if they deadlock
+        a.setDaemon(true);
+        b.setDaemon(true);
+        a.start();
+        lock.lockRead();
+        read.await();
+        b.start();
+        while (b.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        upgrade.countDown();
+        upgrading.await();
+        while (a.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        lock.unlockRead();
+        a.join(5000);
+        b.join(5000);
+        return !a.isAlive() && !b.isAlive();
+    }
+
+    // args: [% scans] [% child reads] [max threads]
+    public static void main(String[] args) throws InterruptedException {
+        int numScan = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int numRead = args.length > 1 ? Integer.parseInt(args[1]) : 45;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        for (Layout l : Layout.values()) {
+            for (Fairness f : Fairness.values()) {
+                System.out.println("Upgrade past a queued writer, " + l + "/"
+                        + f + ": " + (checkUpgrade(l, f) ? "ok" : "FAILED"));
+            }
+        }
+
+        System.out.println("Scans: " + numScan + "%, reads: " + numRead + "%");
+        System.err.println("policy,threads,ops/sec,"
+                + "max " + OP_NAMES[SCAN] + " us,"
+                + "max " + OP_NAMES[READ] + " us,"
+                + "max " + OP_NAMES[WRITE] + " us");
+
+        for (Fairness f : Fairness.values()) {
+            for (int ts=2; ts<=maxThreads; ts*=2) {
+                FairnessTest t = new FairnessTest(f, numScan, numRead);
+                double throughput = t.run(ts);
+                StringBuilder sb = new StringBuilder();
+                sb.append(f).append(',').append(ts).append(',')
+                  .append(String.format("%.2f", throughput));
+                System.out.println("------------------------");
+                System.out.println(f + ", threads: " + ts);
+                System.out.println("Ops/Sec: " + String.format("%.2f", throughput));
+                for (int op=SCAN; op<=WRITE; op++) {
+                    long us = t.maxWait.get(op) / 1000;
+                    System.out.println("Max wait " + OP_NAMES[op] + " (us): " + us);
+                    sb.append(',').append(us);
+                }
+                System.err.println(sb);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.footprint;
+
+import java.util.concurrent.CountDownLatch;
+
+import multilock.MultiLock;
+
+/**
+ * Heap left behind by hold tracking. Every thread reads and then writes
+ * N accounts of its own (under shared branches and a bank), and the heap
+ * is measured while the threads are still alive, once they hold nothing.
+ * Per-thread state kept for locks a thread no longer holds shows up as
+ * bytes per (thread, account).
+ */
+public class FootprintTest {
+
+    public static final int NUM_BRANCHES = 10;
+
+    final MultiLock bank = new MultiLock(null);
+    final MultiLock[] branches = new MultiLock[NUM_BRANCHES];
+    final MultiLock[][] accounts;
+    final long[][] balances;
+
+    public FootprintTest(int numThreads, int numAccounts) {
+        for (int i=0; i<NUM_BRANCHES; i++) {
+            branches[i] = new MultiLock(bank);
+        }
+        accounts = new MultiLock[numThreads][numAccounts];
+        balances = new long[numThreads][numAccounts];
+        for (int t=0; t<numThreads; t++) {
+            for (int i=0; i<numAccounts; i++) {
+                accounts[t][i] = new MultiLock(branches[i % NUM_BRANCHES]);
+            }
+        }
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int maxAccounts = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        System.err.println("threads,accounts/thread,heap bytes/(thread*account),ns/op");
+
+        for (int n=maxAccounts/100; n<=maxAccounts; n*=10) {
+            final int NUM_ACCOUNTS = n;
+            final FootprintTest t = new FootprintTest(numThreads, NUM_ACCOUNTS);
+            final CountDownLatch done = new CountDownLatch(numThreads);
+            final CountDownLatch measured = new CountDownLatch(1);
+            Thread[] threads = new Thread[numThreads];
+
+            long before = usedHeap();
+            long start = System.nanoTime();
+            for (int i=0; i<numThreads; i++) {
+                final MultiLock[] mine = t.accounts[i];
+                final long[] bal = t.balances[i];
+                Thread th = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j=0; j<NUM_ACCOUNTS; j++) {
+                            mine[j].lockRead();
+                            long b = bal[j];
+                            mine[j].unlockRead();
+                            mine[j].lockWrite();
+                            bal[j] = b + 1;
+                            mine[j].unlockWrite();
+                        }
+                        done.countDown();
+                        try {
+                            measured.await();
+                        }
+                        catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                threads[i] = th;
+                th.start();
+            }
+            done.await();
+            double took = System.nanoTime() - start;
+            long after = usedHeap();
+            measured.countDown();
+            for (int i=0; i<numThreads; i++) {
+                threads[i].join();
+            }
+
+            long pairs = (long) numThreads*NUM_ACCOUNTS;
+            String bytes = String.format("%.2f", (after - before)/(double) pairs);
+            String nsPerOp = String.format("%.2f", took/(2*pairs));
+            System.out.println("Threads: " + numThreads + " Accounts/thread: " + NUM_ACCOUNTS
+                               + " Heap bytes/(thread*account): " + bytes + " ns/op: " + nsPerOp);
+            System.err.println(numThreads + "," + NUM_ACCOUNTS + "," + bytes + "," + nsPerOp);
+        }
+    }
+
+}
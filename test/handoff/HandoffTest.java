@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.handoff;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Layout;
+
+/**
+ * Handing a lock from an X holder to a crowd of waiters that are all
+ * compatible with each other (IS and IX). Reports the time from the X
+ * unlock until the last waiter is in, and the throughput of intention
+ * holders against a writer that keeps coming back, for AQS's queue
+ * (PACKED) and MultiLock's own (QUEUED).
+ */
+public class HandoffTest {
+
+    public static final int ROUNDS = 200;
+    public static final int[] WAITERS = { 16, 32, 64 };
+    public static final long RUN_MILLIS = 2000;
+
+    static final Layout[] LAYOUTS = { Layout.PACKED, Layout.QUEUED };
+
+    static void lock(MultiLock m, int i) {
+        if (i % 2 == 0) {
+            m.lockIntentionRead();
+        }
+        else {
+            m.lockIntentionWrite();
+        }
+    }
+
+    static void unlock(MultiLock m, int i) {
+        if (i % 2 == 0) {
+            m.unlockIntentionRead();
+        }
+        else {
+            m.unlockIntentionWrite();
+        }
+    }
+
+    // ns from the X unlock until the last waiter got in, one per round
+    static long[] handoff(final MultiLock m, int numWaiters)
+            throws InterruptedException {
+        long[] lat = new long[ROUNDS];
+        final long[] in = new long[numWaiters];
+        for (int r=0; r<ROUNDS; r++) {
+            final CountDownLatch started = new CountDownLatch(numWaiters);
+            m.lockWrite();
+            Thread[] waiters = new Thread[numWaiters];
+            for (int i=0; i<numWaiters; i++) {
+                final int id = i;
+                waiters[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        lock(m, id);
+                        in[id] = System.nanoTime();
+                        unlock(m, id);
+                    }
+                };
+                waiters[i].start();
+            }
+            started.await();
+            // give the waiters time to park
+            for (Thread t : waiters) {
+                while (t.getState() != Thread.State.WAITING) {
+                    Thread.yield();
+                }
+            }
+            long released = System.nanoTime();
+            m.unlockWrite();
+            for (Thread t : waiters) {
+                t.join();
+            }
+            long last = 0;
+            for (long t : in) {
+                last = Math.max(last, t);
+            }
+            lat[r] = last - released;
+        }
+        return lat;
+    }
+
+    // intention acquisitions per second while a writer keeps taking X
+    static double throughput(final MultiLock m, int numThreads)
+            throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final long[] ops = new long[numThreads];
+        Thread[] threads = new Thread[numThreads + 1];
+        for (int i=0; i<numThreads; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    while (!stop.get()) {
+                        lock(m, id);
+                        unlock(m, id);
+                        n++;
+                    }
+                    ops[id] = n;
+                }
+            };
+        }
+        threads[numThreads] = new Thread() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    m.lockWrite();
+                    m.unlockWrite();
+                    Thread.yield();
+                }
+            }
+        };
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+        double took = (System.nanoTime() - start)/1e9;
+        long total = 0;
+        for (long n : ops) {
+            total += n;
+        }
+        return total/took;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int n : WAITERS) {
+            System.out.println("------------------------");
+            System.out.println("Waiters: " + n);
+            for (Layout layout : LAYOUTS) {
+                long[] lat = handoff(new MultiLock(null, layout), n);
+                Arrays.sort(lat);
+                String median = String.format("%.2f", lat[ROUNDS/2]/1000.0);
+                String p99 = String.format("%.2f", lat[ROUNDS*99/100]/1000.0);
+                String tput = String.format("%.2f", throughput(new MultiLock(null, layout), n));
+                System.out.println(layout + " last in median us: " + median + " p99 us: " + p99
+                                   + " Ops/Sec: " + tput);
+                System.err.println(layout + "," + n + "," + median + "," + p99 + "," + tput);
+            }
+        }
+    }
+
+}
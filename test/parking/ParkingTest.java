@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.parking;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import multilock.MultiLock;
+import multilock.ParkedMultiLock;
+import multilock.ThinMultiLock;
+
+/**
+ * Leaf locks whose waiters park in the global ParkingLot, against
+ * ThinMultiLock (per-lock monitor, inflated on demand) and MultiLock
+ * (per-lock AQS queue). Reports heap per lock, and the time from an X
+ * holder's unlock to a parked waiter getting the lock.
+ */
+public class ParkingTest {
+
+    public static final int ROUNDS = 2000;
+
+    static final String[] KINDS = { "MultiLock", "ThinMultiLock", "ParkedMultiLock" };
+
+    interface Leaf {
+        void lock();
+        void unlock();
+    }
+
+    static Leaf[] make(int kind, int n) {
+        MultiLock branch = new MultiLock(new MultiLock(null));
+        Leaf[] l = new Leaf[n];
+        for (int i=0; i<n; i++) {
+            switch (kind) {
+            case 0:
+                final MultiLock m = new MultiLock(branch);
+                l[i] = new Leaf() {
+                    public void lock() { m.lockWrite(); }
+                    public void unlock() { m.unlockWrite(); }
+                };
+                break;
+            case 1:
+                final ThinMultiLock t = new ThinMultiLock(branch);
+                l[i] = new Leaf() {
+                    public void lock() { t.lockWrite(); }
+                    public void unlock() { t.unlockWrite(); }
+                };
+                break;
+            default:
+                final ParkedMultiLock p = new ParkedMultiLock(branch);
+                l[i] = new Leaf() {
+                    public void lock() { p.lockWrite(); }
+                    public void unlock() { p.unlockWrite(); }
+                };
+            }
+        }
+        return l;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static Object[] allocate(int kind, int n) {
+        MultiLock branch = new MultiLock(new MultiLock(null));
+        Object[] l = new Object[n];
+        for (int i=0; i<n; i++) {
+            l[i] = (kind == 0) ? new MultiLock(branch)
+                 : (kind == 1) ? new ThinMultiLock(branch)
+                 : new ParkedMultiLock(branch);
+        }
+        return l;
+    }
+
+    // wake-up latencies in ns, one per round
+    static long[] wakeLatency(final Leaf l) throws InterruptedException {
+        final long[] lat = new long[ROUNDS];
+        final long[] released = new long[1];
+        for (int r=0; r<ROUNDS; r++) {
+            final int round = r;
+            final CountDownLatch started = new CountDownLatch(1);
+            l.lock();
+            Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    l.lock();
+                    lat[round] = System.nanoTime() - released[0];
+                    l.unlock();
+                }
+            };
+            waiter.start();
+            started.await();
+            // give the waiter time to park
+            while (waiter.getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+            released[0] = System.nanoTime();
+            l.unlock();
+            waiter.join();
+        }
+        return lat;
+    }
+
+    // args: [locks for the memory test]
+    public static void main(String[] args) throws InterruptedException {
+        int numLocks = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        System.out.println("------------------------");
+        System.out.println("Memory, " + numLocks + " locks");
+        for (int kind=0; kind<KINDS.length; kind++) {
+            long before = usedHeap();
+            Object[] l = allocate(kind, numLocks);
+            long after = usedHeap();
+            String perLock = String.format("%.2f", (after - before)/(double) numLocks);
+            System.out.println(KINDS[kind] + " bytes/lock: " + perLock);
+            System.err.println("memory," + KINDS[kind] + "," + perLock);
+            l[0].hashCode(); // keep l reachable until measured
+        }
+
+        System.out.println("------------------------");
+        System.out.println("Wake-up latency, " + ROUNDS + " rounds");
+        for (int kind=0; kind<KINDS.length; kind++) {
+            long[] lat = wakeLatency(make(kind, 1)[0]);
+            Arrays.sort(lat);
+            String median = String.format("%.2f", lat[ROUNDS/2]/1000.0);
+            String p99 = String.format("%.2f", lat[ROUNDS*99/100]/1000.0);
+            System.out.println(KINDS[kind] + " median us: " + median + " p99 us: " + p99);
+            System.err.println("wake," + KINDS[kind] + "," + median + "," + p99);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.path;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Layout;
+import multilock.MultiLock.Mode;
+
+/**
+ * Checks that a timed-out tryLockPath leaves no intention counts behind.
+ * For each layout, each level of a DEPTH-long chain in turn is held in X
+ * by another thread while tryLockPath is tried on the leaf in every mode,
+ * which must time out at that level. Once the holder lets go, every
+ * level must be write-lockable again by a fresh thread.
+ */
+public class PathTimeoutTest {
+
+    public static final int DEPTH = 4;
+    public static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    static int failures = 0;
+
+    static void fail(String msg) {
+        System.out.println("FAIL: " + msg);
+        failures++;
+    }
+
+    // runs r on a new thread and waits for it, so its holds are its own
+    static void onThread(Runnable r) throws InterruptedException {
+        Thread t = new Thread(r);
+        t.start();
+        t.join();
+    }
+
+    public static void check(final Layout layout, final int blocked) throws InterruptedException {
+        final MultiLock[] chain = new MultiLock[DEPTH];
+        for (int d=0; d<DEPTH; d++) {
+            chain[d] = new MultiLock(d == 0 ? null : chain[d-1], layout);
+        }
+        final MultiLock leaf = chain[DEPTH-1];
+        final String where = layout + " blocked at level " + blocked;
+
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                chain[blocked].lockWrite();
+                held.countDown();
+                try {
+                    done.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                chain[blocked].unlockWrite();
+            }
+        };
+        holder.start();
+        held.await();
+
+        onThread(new Runnable() {
+            public void run() {
+                for (Mode m : Mode.values()) {
+                    try {
+                        if (leaf.tryLockPath(m, System.nanoTime() + TIMEOUT_NANOS)) {
+                            fail(where + ": " + m + " on the leaf did not time out");
+                            leaf.unlockPath(m);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        fail(where + ": " + m + " interrupted");
+                    }
+                }
+            }
+        });
+
+        done.countDown();
+        holder.join();
+
+        onThread(new Runnable() {
+            public void run() {
+                for (int d=0; d<DEPTH; d++) {
+                    try {
+                        if (chain[d].tryLockWrite(1, TimeUnit.SECONDS)) {
+                            chain[d].unlockWrite();
+                        }
+                        else {
+                            fail(where + ": level " + d + " can't be write-locked afterwards");
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        fail(where + ": level " + d + " interrupted");
+                    }
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int runs = 0;
+        for (Layout layout : Layout.values()) {
+            for (int blocked=0; blocked<DEPTH; blocked++) {
+                check(layout, blocked);
+                runs++;
+            }
+        }
+        System.out.println(runs + " chains, " + runs*Mode.values().length
+                           + " timed-out paths, " + failures + " failures");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+}
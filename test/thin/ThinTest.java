@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.thin;
+
+import java.util.Random;
+
+import multilock.MultiLock;
+import multilock.ThinMultiLock;
+
+/**
+ * ThinMultiLock against MultiLock for leaf locks: heap per lock when
+ * allocating many of them under one branch, then throughput of random
+ * leaf reads and writes.
+ */
+public class ThinTest {
+
+    public static final int NUM_LEAVES = 1024;
+    public static final int NUM_OPS = 1000000;
+
+    interface Leaves {
+        void read(int i);
+        void write(int i);
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static Leaves multiLocks(int n) {
+        MultiLock branch = new MultiLock(new MultiLock(null));
+        final MultiLock[] l = new MultiLock[n];
+        for (int i=0; i<n; i++) {
+            l[i] = new MultiLock(branch);
+        }
+        return new Leaves() {
+            public void read(int i) { l[i].lockRead(); l[i].unlockRead(); }
+            public void write(int i) { l[i].lockWrite(); l[i].unlockWrite(); }
+        };
+    }
+
+    static Leaves thinLocks(int n) {
+        MultiLock branch = new MultiLock(new MultiLock(null));
+        final ThinMultiLock[] l = new ThinMultiLock[n];
+        for (int i=0; i<n; i++) {
+            l[i] = new ThinMultiLock(branch);
+        }
+        return new Leaves() {
+            public void read(int i) { l[i].lockRead(); l[i].unlockRead(); }
+            public void write(int i) { l[i].lockWrite(); l[i].unlockWrite(); }
+        };
+    }
+
+    static Leaves make(boolean thin, int n) {
+        return thin ? thinLocks(n) : multiLocks(n);
+    }
+
+    static String name(boolean thin) {
+        return thin ? "ThinMultiLock" : "MultiLock";
+    }
+
+    // args: [locks for the memory test] [max threads]
+    public static void main(String[] args) throws InterruptedException {
+        int numLocks = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        System.out.println("------------------------");
+        System.out.println("Memory, " + numLocks + " locks");
+        for (boolean thin : new boolean[] { false, true }) {
+            long before = usedHeap();
+            Leaves l = make(thin, numLocks);
+            long after = usedHeap();
+            String perLock = String.format("%.2f", (after - before)/(double) numLocks);
+            System.out.println(name(thin) + " bytes/lock: " + perLock);
+            System.err.println("memory," + name(thin) + "," + perLock);
+            l.read(0); // keep l reachable until measured
+        }
+
+        for (boolean thin : new boolean[] { false, true }) {
+            final Leaves l = make(thin, NUM_LEAVES);
+            System.out.println("------------------------");
+            System.out.println(name(thin));
+
+            for (int ts=1; ts<=maxThreads; ts*=2) {
+                final int NUM_THREADS = ts;
+                Thread[] threads = new Thread[NUM_THREADS];
+                long totalOps = (long) NUM_THREADS*NUM_OPS;
+
+                long start = System.nanoTime();
+                for (int i=0; i<NUM_THREADS; i++) {
+                    Thread th = new Thread() {
+                        final Random rnd = new Random();
+                        @Override
+                        public void run() {
+                            for (int j=0; j<NUM_OPS; j++) {
+                                int leaf = rnd.nextInt(NUM_LEAVES);
+                                if (rnd.nextBoolean()) {
+                                    l.read(leaf);
+                                }
+                                else {
+                                    l.write(leaf);
+                                }
+                            }
+                        }
+                    };
+                    threads[i] = th;
+                    th.start();
+                }
+                for (int i=0; i<NUM_THREADS; i++) {
+                    threads[i].join();
+                }
+                double took = (System.nanoTime()-start)/1e9;
+                String throughput = String.format("%.2f", (totalOps/took));
+                System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput);
+                System.err.println("throughput," + name(thin) + "," + NUM_THREADS + "," + throughput);
+            }
+        }
+    }
+
+}
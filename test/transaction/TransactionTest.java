@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.transaction;
+
+import java.util.Random;
+
+import multilock.LockTransaction;
+import multilock.LockTransaction.DeadlockAvoidance;
+import multilock.MultiLock;
+
+/**
+ * Writing every account of one branch, with a lockWrite() per account
+ * (each of which takes IX on the bank and the branch again) against one
+ * LockTransaction, which takes the bank and branch intentions once, and
+ * against one that escalates to X on the branch after ESCALATE_AT
+ * accounts. Threads pick a random branch each time.
+ *
+ * First checks that a transaction de-escalating from the bank retakes
+ * the branch intention above an account it wrote while escalated.
+ */
+public class TransactionTest {
+
+    public static final int NUM_BRANCHES = 8;
+    public static final int NUM_ACCTS_PER_BRANCH = 20;
+    public static final int ESCALATE_AT = 8;
+
+    static final String[] KINDS = { "lockWrite", "LockTransaction", "LockTransaction escalating" };
+
+    final MultiLock[][] accounts = new MultiLock[NUM_BRANCHES][NUM_ACCTS_PER_BRANCH];
+    final long[][] balances = new long[NUM_BRANCHES][NUM_ACCTS_PER_BRANCH];
+
+    public TransactionTest() {
+        MultiLock bank = new MultiLock(null);
+        for (int i=0; i<NUM_BRANCHES; i++) {
+            MultiLock branch = new MultiLock(bank);
+            for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+                accounts[i][j] = new MultiLock(branch);
+            }
+        }
+    }
+
+    public void perLock(Random r) {
+        int i = r.nextInt(NUM_BRANCHES);
+        MultiLock[] accts = accounts[i];
+        long[] bal = balances[i];
+        for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+            accts[j].lockWrite();
+        }
+        for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+            bal[j]++;
+        }
+        for (int j=NUM_ACCTS_PER_BRANCH-1; j>=0; j--) {
+            accts[j].unlockWrite();
+        }
+    }
+
+    public void transaction(Random r, LockTransaction tx) {
+        int i = r.nextInt(NUM_BRANCHES);
+        MultiLock[] accts = accounts[i];
+        long[] bal = balances[i];
+        for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+            tx.lockWrite(accts[j]);
+        }
+        for (int j=0; j<NUM_ACCTS_PER_BRANCH; j++) {
+            bal[j]++;
+        }
+        tx.commit();
+    }
+
+    // Escalates the bank to X through two branches, writes an account of a
+    // third branch while escalated, and has another thread wait for the
+    // bank so that the next lock de-escalates. The third branch must then
+    // be held in IX, so nobody else can read it.
+    static boolean checkDeescalation() throws InterruptedException {
+        final MultiLock bank = new MultiLock(null);
+        MultiLock[] branches = new MultiLock[3];
+        MultiLock[] accts = new MultiLock[3];
+        for (int i=0; i<3; i++) {
+            branches[i] = new MultiLock(bank);
+            accts[i] = new MultiLock(branches[i]);
+        }
+        LockTransaction tx = new LockTransaction(DeadlockAvoidance.NONE, 2);
+        tx.lockWrite(branches[0]);
+        tx.lockWrite(branches[1]);
+        tx.lockWrite(accts[2]);
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                bank.lockRead();
+                bank.unlockRead();
+            }
+        };
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        tx.lockWrite(accts[0]);
+
+        final MultiLock branch2 = branches[2];
+        final boolean[] read = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                read[0] = branch2.tryLockRead();
+                if (read[0]) {
+                    branch2.unlockRead();
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        tx.commit();
+        waiter.join();
+        return !read[0];
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("De-escalation retakes intentions: "
+                           + (checkDeescalation() ? "ok" : "FAILED"));
+
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int NUM_OPS = 200000;
+        final TransactionTest t = new TransactionTest();
+
+        for (int kind=0; kind<KINDS.length; kind++) {
+            final boolean tx = kind > 0;
+            final int escalateAt = (kind == 2) ? ESCALATE_AT : 0;
+            String name = KINDS[kind];
+            System.out.println("------------------------");
+            System.out.println(name);
+
+            for (int ts=1; ts<=maxThreads; ts*=2) {
+                final int NUM_THREADS = ts;
+                Thread[] threads = new Thread[NUM_THREADS];
+                long totalOps = (long) NUM_THREADS*NUM_OPS;
+
+                long start = System.nanoTime();
+                for (int i=0; i<NUM_THREADS; i++) {
+                    Thread th = new Thread() {
+                        final Random rnd = new Random();
+                        @Override
+                        public void run() {
+                            LockTransaction ltx = new LockTransaction(DeadlockAvoidance.NONE, escalateAt);
+                            for (int j=0; j<NUM_OPS; j++) {
+                                if (tx) {
+                                    t.transaction(rnd, ltx);
+                                }
+                                else {
+                                    t.perLock(rnd);
+                                }
+                            }
+                        }
+                    };
+                    threads[i] = th;
+                    th.start();
+                }
+                for (int i=0; i<NUM_THREADS; i++) {
+                    threads[i].join();
+                }
+                double took = (System.nanoTime()-start)/1e9;
+                String throughput = String.format("%.2f", (totalOps/took));
+                String nsPerOp = String.format("%.2f", took*1e9/totalOps);
+                System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput
+                                   + " ns/op: " + nsPerOp);
+                System.err.println(name + "," + NUM_THREADS + "," + throughput + "," + nsPerOp);
+            }
+        }
+    }
+
+}
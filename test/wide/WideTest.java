@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010-2016 Khilan Gudka
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package test.wide;
+
+import java.util.Random;
+
+import multilock.MultiLock;
+import multilock.MultiLock.Layout;
+
+/**
+ * Cost of the overflow-checked WIDE layout against the default PACKED one.
+ * Threads read (S) or write (X) random leaves under a shared root, so the
+ * root sees IS/IX traffic from every thread, and every 16th op also takes
+ * the leaf re-entrantly, which WIDE counts thread-locally.
+ */
+public class WideTest {
+
+    public static final Layout[] LAYOUTS = { Layout.PACKED, Layout.WIDE };
+    public static final int NUM_LEAVES = 64;
+
+    final MultiLock[] leaves = new MultiLock[NUM_LEAVES];
+    final long[] values = new long[NUM_LEAVES];
+
+    public WideTest(Layout layout) {
+        MultiLock root = new MultiLock(null, layout);
+        for (int i=0; i<NUM_LEAVES; i++) {
+            leaves[i] = new MultiLock(root, layout);
+        }
+    }
+
+    public long op(Random r) {
+        int i = r.nextInt(NUM_LEAVES);
+        int n = r.nextInt(16);
+        MultiLock l = leaves[i];
+        if ((n & 1) == 0) {
+            l.lockRead();
+            if (n == 0) {
+                l.lockRead();
+                l.unlockRead();
+            }
+            long v = values[i];
+            l.unlockRead();
+            return v;
+        }
+        l.lockWrite();
+        if (n == 1) {
+            l.lockWrite();
+            l.unlockWrite();
+        }
+        values[i]++;
+        l.unlockWrite();
+        return 0;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int NUM_OPS = 1000000;
+
+        for (Layout layout : LAYOUTS) {
+            final WideTest t = new WideTest(layout);
+            System.out.println("------------------------");
+            System.out.println("Layout: " + layout);
+
+            for (int ts=1; ts<=maxThreads; ts*=2) {
+                final int NUM_THREADS = ts;
+                Thread[] threads = new Thread[NUM_THREADS];
+                long totalOps = (long) NUM_THREADS*NUM_OPS;
+
+                long start = System.nanoTime();
+                for (int i=0; i<NUM_THREADS; i++) {
+                    Thread th = new Thread() {
+                        final Random rnd = new Random();
+                        @Override
+                        public void run() {
+                            for (int j=0; j<NUM_OPS; j++) {
+                                t.op(rnd);
+                            }
+                        }
+                    };
+                    threads[i] = th;
+                    th.start();
+                }
+                for (int i=0; i<NUM_THREADS; i++) {
+                    threads[i].join();
+                }
+                double took = (System.nanoTime()-start)/1e9;
+                String throughput = String.format("%.2f", (totalOps/took));
+                String nsPerOp = String.format("%.2f", took*1e9/totalOps);
+                System.out.println("Threads: " + NUM_THREADS + " Ops/Sec: " + throughput
+                                   + " ns/op: " + nsPerOp);
+                System.err.println(layout + "," + NUM_THREADS + "," + throughput + "," + nsPerOp);
+            }
+        }
+    }
+
+}